@@ -0,0 +1,137 @@
+package net.pincette.mongo.collections;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.IntStream.range;
+import static net.pincette.mongo.collections.MongoCollectionReconciler.indexes;
+import static net.pincette.mongo.collections.MongoCollectionReconciler.removeDefaultCollation;
+import static net.pincette.util.Collections.list;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the paths that run for every resource on every resync. The catalog documents look like
+ * what <code>listIndexes</code> returns, with partial filters, explicit default collations and TTL
+ * options mixed in.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+public class IndexBenchmark {
+  private static final String LOCALE = "en";
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String NAME = "benchmark";
+
+  @Param({"1", "8", "64"})
+  public int count;
+
+  private List<RawBsonDocument> catalog;
+  private List<Index> desired;
+  private List<Index> found;
+  private MongoCollectionSpec spec;
+
+  private static Document collation() {
+    return new Document("locale", LOCALE)
+        .append("caseLevel", false)
+        .append("caseFirst", "off")
+        .append("strength", 1)
+        .append("numericOrdering", false)
+        .append("alternate", "non-ignorable")
+        .append("maxVariable", "punct")
+        .append("normalization", false)
+        .append("backwards", false)
+        .append("version", "57.1");
+  }
+
+  private static RawBsonDocument index(final int i) {
+    final Document index =
+        new Document("v", 2)
+            .append("key", new Document("field" + i, 1).append("created", -1))
+            .append("name", "field" + i + "_1_created_-1");
+
+    if (i % 3 == 0) {
+      index.append(
+          "partialFilterExpression",
+          new Document("status", new Document("$in", list("active", "pending")))
+              .append("deleted", new Document("$exists", false)));
+    }
+
+    if (i % 4 == 0) {
+      index.append("collation", collation());
+    }
+
+    if (i % 5 == 0) {
+      index.append("expireAfterSeconds", 3600);
+    }
+
+    return new RawBsonDocument(index, new DocumentCodec());
+  }
+
+  private static MongoCollectionSpec spec(final List<Index> indexes) {
+    final MongoCollectionSpec spec =
+        MAPPER.convertValue(
+            new Document("collation", new Document("locale", LOCALE))
+                .append(
+                    "validator",
+                    new Document(
+                        "$jsonSchema",
+                        new Document("bsonType", "object")
+                            .append("required", list("status", "created"))
+                            .append(
+                                "properties",
+                                new Document(
+                                        "status", new Document("enum", list("active", "pending")))
+                                    .append("created", new Document("bsonType", "date"))))),
+            MongoCollectionSpec.class);
+
+    spec.indexes = indexes;
+
+    return spec;
+  }
+
+  @Benchmark
+  public IndexPlan diff() {
+    return new IndexPlan(found, desired);
+  }
+
+  @Benchmark
+  public String fingerprint() {
+    return Fingerprint.spec(NAME, spec);
+  }
+
+  @Benchmark
+  public List<Index> fromCatalog() {
+    return indexes(catalog, LOCALE);
+  }
+
+  @Benchmark
+  public List<Index> normalize() {
+    return desired.stream().map(i -> removeDefaultCollation(i, LOCALE)).toList();
+  }
+
+  @Setup
+  public void setup() {
+    catalog = range(0, count).mapToObj(IndexBenchmark::index).toList();
+    found = indexes(catalog, LOCALE);
+    desired = indexes(catalog, LOCALE);
+    spec = spec(desired);
+  }
+}
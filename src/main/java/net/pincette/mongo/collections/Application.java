@@ -1,23 +1,44 @@
 package net.pincette.mongo.collections;
 
+import static com.typesafe.config.ConfigFactory.defaultOverrides;
+import static io.javaoperatorsdk.operator.monitoring.micrometer.MicrometerMetrics.withoutPerResourceMetrics;
 import static java.util.logging.Logger.getLogger;
+import static net.pincette.jes.util.Configuration.loadDefault;
 import static net.pincette.operator.util.Util.watchedNamespaces;
 import static net.pincette.util.Util.initLogging;
 
+import com.typesafe.config.Config;
 import io.javaoperatorsdk.operator.Operator;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import java.util.logging.Logger;
 
 public class Application {
   static final Logger LOGGER = getLogger("net.pincette.mongo.collections");
+  private static final String CONFIG_METRICS_PORT = "metricsPort";
+  private static final String CONFIG_RECONCILIATION_THREADS = "reconciliationThreads";
   private static final String VERSION = "1.1.2";
 
+  private static int configInt(final Config config, final String path, final int defaultValue) {
+    return config.hasPath(path) ? config.getInt(path) : defaultValue;
+  }
+
   public static void main(final String[] args) {
-    final Operator operator = new Operator();
+    final Config config = defaultOverrides().withFallback(loadDefault());
+    final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    final Operator operator =
+        new Operator(
+            o ->
+                o.withConcurrentReconciliationThreads(
+                        configInt(config, CONFIG_RECONCILIATION_THREADS, 50))
+                    .withMetrics(withoutPerResourceMetrics(registry)));
 
     initLogging();
     LOGGER.info(() -> "Version " + VERSION);
+    MetricsServer.start(registry, configInt(config, CONFIG_METRICS_PORT, 9090));
     operator.register(
-        new MongoCollectionReconciler(), config -> config.settingNamespaces(watchedNamespaces()));
+        new MongoCollectionReconciler(config, registry),
+        c -> c.settingNamespaces(watchedNamespaces()));
     operator.start();
   }
 }
@@ -0,0 +1,197 @@
+package net.pincette.mongo.collections;
+
+import static java.time.Instant.ofEpochMilli;
+import static java.time.Instant.ofEpochSecond;
+import static java.util.Optional.ofNullable;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+/**
+ * Converts between BSON and the plain Java values in the free-form maps of the specification. The
+ * values are the same as what the former conversion through JSON and Jackson produced. Integers
+ * become longs, doubles become big decimals, and dates, timestamps and object IDs become strings.
+ * In the other direction, strings that are ISO instants become dates and 24-digit hexadecimal
+ * <code>_id</code> values become object IDs.
+ */
+class BsonValues {
+  private static final String ID = "_id";
+  private static final String OPTIONS = "$options";
+  private static final String REGEX = "$regex";
+
+  private BsonValues() {}
+
+  private static boolean isObjectId(final String key, final String value) {
+    return ID.equals(key) && value.length() == 24 && ObjectId.isValid(value);
+  }
+
+  /** Reads a boolean, which may also be represented as a number. */
+  static boolean readBoolean(final BsonReader reader) {
+    return reader.getCurrentBsonType() == BsonType.BOOLEAN
+        ? reader.readBoolean()
+        : readNumber(reader).doubleValue() != 0;
+  }
+
+  private static List<Object> readList(final BsonReader reader) {
+    final List<Object> list = new ArrayList<>();
+
+    reader.readStartArray();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      list.add(readValue(reader));
+    }
+
+    reader.readEndArray();
+
+    return list;
+  }
+
+  static Map<String, Object> readMap(final BsonReader reader) {
+    final Map<String, Object> map = new LinkedHashMap<>();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      map.put(reader.readName(), readValue(reader));
+    }
+
+    reader.readEndDocument();
+
+    return map;
+  }
+
+  /** Reads a number of any BSON type, including a string with a number in it. */
+  static Number readNumber(final BsonReader reader) {
+    return switch (reader.getCurrentBsonType()) {
+      case DECIMAL128 -> reader.readDecimal128().bigDecimalValue();
+      case DOUBLE -> reader.readDouble();
+      case INT32 -> reader.readInt32();
+      case INT64 -> reader.readInt64();
+      case STRING -> new BigDecimal(reader.readString());
+      default ->
+          throw new BsonInvalidOperationException(
+              "Expected a number, but got " + reader.getCurrentBsonType());
+    };
+  }
+
+  static Object readValue(final BsonReader reader) {
+    return switch (reader.getCurrentBsonType()) {
+      case ARRAY -> readList(reader);
+      case BOOLEAN -> reader.readBoolean();
+      case DATE_TIME -> ofEpochMilli(reader.readDateTime()).toString();
+      case DECIMAL128 -> reader.readDecimal128().bigDecimalValue();
+      case DOCUMENT -> readMap(reader);
+      case DOUBLE -> BigDecimal.valueOf(reader.readDouble());
+      case INT32 -> (long) reader.readInt32();
+      case INT64 -> reader.readInt64();
+      case NULL -> {
+        reader.readNull();
+        yield null;
+      }
+      case OBJECT_ID -> reader.readObjectId().toHexString();
+      case REGULAR_EXPRESSION -> {
+        final BsonRegularExpression expression = reader.readRegularExpression();
+        final Map<String, Object> map = new LinkedHashMap<>();
+
+        map.put(REGEX, expression.getPattern());
+        map.put(OPTIONS, expression.getOptions());
+
+        yield map;
+      }
+      case STRING -> reader.readString();
+      case TIMESTAMP -> ofEpochSecond(reader.readTimestamp().getTime()).toString();
+      default -> {
+        reader.skipValue();
+        yield null;
+      }
+    };
+  }
+
+  static BsonDocument toBson(final Map<String, ?> map) {
+    final BsonDocument document = new BsonDocument();
+
+    map.forEach((k, v) -> document.append(k, toBson(k, v)));
+
+    return document;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BsonValue toBson(final String key, final Object value) {
+    if (value == null) {
+      return BsonNull.VALUE;
+    }
+
+    if (value instanceof Map<?, ?> map) {
+      return toBson((Map<String, ?>) map);
+    }
+
+    if (value instanceof List<?> list) {
+      return new BsonArray(list.stream().map(v -> toBson(null, v)).toList());
+    }
+
+    if (value instanceof String string) {
+      return toBson(key, string);
+    }
+
+    if (value instanceof Boolean bool) {
+      return BsonBoolean.valueOf(bool);
+    }
+
+    return toBson((Number) value);
+  }
+
+  private static BsonValue toBson(final Number number) {
+    if (number instanceof Integer || number instanceof Short || number instanceof Byte) {
+      return new BsonInt32(number.intValue());
+    }
+
+    if (number instanceof Long) {
+      return new BsonInt64(number.longValue());
+    }
+
+    if (number instanceof BigDecimal decimal) {
+      return decimal.scale() <= 0 && decimal.precision() - decimal.scale() <= 18
+          ? new BsonInt64(decimal.longValueExact())
+          : new BsonDouble(decimal.doubleValue());
+    }
+
+    return number instanceof Decimal128 decimal
+        ? new BsonDecimal128(decimal)
+        : new BsonDouble(number.doubleValue());
+  }
+
+  private static BsonValue toBson(final String key, final String value) {
+    if (isObjectId(key, value)) {
+      return new BsonObjectId(new ObjectId(value));
+    }
+
+    // The shortest ISO instant has 20 characters. This avoids parse exceptions for most strings.
+    return ofNullable(value.length() >= 20 ? value : null)
+        .flatMap(v -> tryToGetSilent(() -> Instant.parse(v)))
+        .<BsonValue>map(i -> new BsonDateTime(i.toEpochMilli()))
+        .orElseGet(() -> new BsonString(value));
+  }
+}
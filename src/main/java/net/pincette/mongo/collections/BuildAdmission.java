@@ -0,0 +1,230 @@
+package net.pincette.mongo.collections;
+
+import static java.time.Duration.between;
+import static java.time.Duration.ofSeconds;
+import static java.time.Instant.now;
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.MINUTES;
+import static java.util.Optional.ofNullable;
+import static java.util.logging.Level.FINE;
+import static java.util.stream.Collectors.toSet;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Pair.pair;
+import static net.pincette.util.Util.tryToGet;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionSpec.MaintenanceWindow;
+import net.pincette.util.Pair;
+import org.bson.Document;
+
+/**
+ * Decides whether index builds can start now. When there are maintenance windows, a build waits for
+ * one of them to be open. It also waits while the replication lag or the pressure on the WiredTiger
+ * cache of the primary is above its threshold. Hidden and delayed members don't count for the
+ * replication lag, because they are behind by design. The load is sampled at most every ten
+ * seconds. When it can't be read, for example because the operator doesn't have the clusterMonitor
+ * role, it doesn't hold builds back. A threshold of zero turns its check off.
+ */
+class BuildAdmission {
+  static final String CACHE = "cache";
+  static final String REPLICATION_LAG = "replicationLag";
+  static final String WINDOW = "window";
+  private static final String ADMIN = "admin";
+  private static final String BYTES_DIRTY = "tracked dirty bytes in the cache";
+  private static final String BYTES_IN_CACHE = "bytes currently in the cache";
+  private static final String BYTES_MAX = "maximum bytes configured";
+  private static final String CONFIG = "config";
+  private static final String HIDDEN = "hidden";
+  private static final String ID = "_id";
+  private static final String MEMBERS = "members";
+  private static final String OPTIME_DATE = "optimeDate";
+  private static final String REPL_SET_GET_CONFIG = "replSetGetConfig";
+  private static final String REPL_SET_GET_STATUS = "replSetGetStatus";
+  private static final Duration SAMPLE_INTERVAL = ofSeconds(10);
+  private static final String SECONDARY_DELAY_SECS = "secondaryDelaySecs";
+  private static final String SLAVE_DELAY = "slaveDelay";
+  private static final String SERVER_STATUS = "serverStatus";
+  private static final String STATE = "state";
+  private static final int STATE_PRIMARY = 1;
+  private static final int STATE_SECONDARY = 2;
+  private static final String WIRED_TIGER = "wiredTiger";
+
+  private final MongoDatabase admin;
+  private final Limits limits;
+  private final int maxCacheDirtyPercentage;
+  private final int maxCacheFillPercentage;
+  private final Duration maxReplicationLag;
+  private Load load;
+
+  BuildAdmission(
+      final MongoClient client,
+      final Limits limits,
+      final Duration maxReplicationLag,
+      final int maxCacheDirtyPercentage,
+      final int maxCacheFillPercentage) {
+    this.admin = client.getDatabase(ADMIN);
+    this.limits = limits;
+    this.maxReplicationLag = maxReplicationLag;
+    this.maxCacheDirtyPercentage = maxCacheDirtyPercentage;
+    this.maxCacheFillPercentage = maxCacheFillPercentage;
+  }
+
+  /** Returns the IDs of the members that are hidden or delayed in the replica set configuration. */
+  private static Set<Object> excluded(final Document config) {
+    return ofNullable(config.get(CONFIG, Document.class))
+        .orElse(config)
+        .getList(MEMBERS, Document.class, list())
+        .stream()
+        .filter(
+            m ->
+                m.getBoolean(HIDDEN, false)
+                    || number(m, SECONDARY_DELAY_SECS) > 0
+                    || number(m, SLAVE_DELAY) > 0)
+        .map(m -> m.get(ID))
+        .collect(toSet());
+  }
+
+  private static double number(final Document document, final String field) {
+    return ofNullable(document.get(field, Number.class)).map(Number::doubleValue).orElse(0.0);
+  }
+
+  /** Indicates whether one of the windows is open at <code>now</code>. */
+  static boolean open(final List<MaintenanceWindow> windows, final Instant now) {
+    return windows.stream().anyMatch(w -> open(w, now));
+  }
+
+  private static boolean open(final MaintenanceWindow window, final Instant now) {
+    final Cron cron = Cron.parse(window.schedule);
+    final ZonedDateTime time =
+        now.atZone(ofNullable(window.timeZone).map(ZoneId::of).orElse(UTC)).truncatedTo(MINUTES);
+
+    return Stream.iterate(time, t -> t.minusMinutes(1))
+        .limit(window.durationMinutes)
+        .anyMatch(cron::matches);
+  }
+
+  private static Stream<Instant> optime(final List<Document> members, final int state) {
+    return members.stream()
+        .filter(
+            m -> ofNullable(m.get(STATE, Number.class)).map(Number::intValue).orElse(-1) == state)
+        .map(m -> m.getDate(OPTIME_DATE))
+        .filter(Objects::nonNull)
+        .map(Date::toInstant);
+  }
+
+  /**
+   * Returns the lag between the primary and the slowest secondary that isn't hidden or delayed
+   * according to <code>config</code>, which is the result of <code>replSetGetConfig</code>.
+   */
+  static Optional<Duration> replicationLag(final Document status, final Document config) {
+    final Set<Object> excluded = excluded(config);
+    final List<Document> members =
+        status.getList(MEMBERS, Document.class, list()).stream()
+            .filter(m -> !excluded.contains(m.get(ID)))
+            .toList();
+    final Optional<Instant> primary = optime(members, STATE_PRIMARY).findFirst();
+
+    return primary.flatMap(
+        p -> optime(members, STATE_SECONDARY).min(Instant::compareTo).map(s -> between(s, p)));
+  }
+
+  /**
+   * Returns the reason and a message when builds should wait. The windows may be empty, in which
+   * case builds can start at any time.
+   */
+  Optional<Pair<String, String>> deferral(final List<MaintenanceWindow> windows) {
+    if (!windows.isEmpty() && !open(windows, now())) {
+      return Optional.of(pair(WINDOW, "Waiting for a maintenance window"));
+    }
+
+    final Load current = load();
+
+    if (!maxReplicationLag.isZero()
+        && current.replicationLag != null
+        && current.replicationLag.compareTo(maxReplicationLag) > 0) {
+      return Optional.of(
+          pair(
+              REPLICATION_LAG,
+              "The replication lag of "
+                  + current.replicationLag.toSeconds()
+                  + "s is above "
+                  + maxReplicationLag.toSeconds()
+                  + "s"));
+    }
+
+    if ((maxCacheDirtyPercentage > 0 && current.cacheDirty > maxCacheDirtyPercentage)
+        || (maxCacheFillPercentage > 0 && current.cacheFill > maxCacheFillPercentage)) {
+      return Optional.of(
+          pair(
+              CACHE,
+              "The WiredTiger cache is "
+                  + Math.round(current.cacheFill)
+                  + "% full and "
+                  + Math.round(current.cacheDirty)
+                  + "% dirty, above "
+                  + maxCacheFillPercentage
+                  + "% and "
+                  + maxCacheDirtyPercentage
+                  + "%"));
+    }
+
+    return Optional.empty();
+  }
+
+  private synchronized Load load() {
+    if (load == null || between(load.sampled, now()).compareTo(SAMPLE_INTERVAL) > 0) {
+      load = sample();
+    }
+
+    return load;
+  }
+
+  private Optional<Document> read(final String command) {
+    return tryToGet(
+        () -> limits.read(() -> admin.runCommand(new Document(command, 1))),
+        e -> {
+          LOGGER.log(FINE, e, () -> "Can't run " + command + ": " + e.getMessage());
+          return null;
+        });
+  }
+
+  private Load sample() {
+    final Optional<Document> cache =
+        read(SERVER_STATUS)
+            .map(s -> s.get(WIRED_TIGER, Document.class))
+            .map(w -> w.get(CACHE, Document.class));
+    final double max = cache.map(c -> number(c, BYTES_MAX)).orElse(0.0);
+
+    return new Load(
+        read(REPL_SET_GET_STATUS)
+            .flatMap(s -> replicationLag(s, read(REPL_SET_GET_CONFIG).orElseGet(Document::new)))
+            .orElse(null),
+        max > 0 ? cache.map(c -> 100 * number(c, BYTES_DIRTY) / max).orElse(0.0) : 0.0,
+        max > 0 ? cache.map(c -> 100 * number(c, BYTES_IN_CACHE) / max).orElse(0.0) : 0.0);
+  }
+
+  private static class Load {
+    private final double cacheDirty;
+    private final double cacheFill;
+    private final Duration replicationLag;
+    private final Instant sampled = now();
+
+    private Load(final Duration replicationLag, final double cacheDirty, final double cacheFill) {
+      this.replicationLag = replicationLag;
+      this.cacheDirty = cacheDirty;
+      this.cacheFill = cacheFill;
+    }
+  }
+}
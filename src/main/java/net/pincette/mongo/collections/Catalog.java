@@ -0,0 +1,379 @@
+package net.pincette.mongo.collections;
+
+import static com.mongodb.client.model.Filters.eq;
+import static java.time.Instant.now;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.stream.Collectors.toMap;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+import static net.pincette.util.StreamUtil.stream;
+import static net.pincette.util.Util.tryToGet;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * Caches the collection names, options and index specifications of a database. The cache is filled
+ * with one pass over the catalog and is then refreshed per collection when something is missing or
+ * has been invalidated. The complete catalog is reloaded when the refresh interval has elapsed.
+ *
+ * <p>The first load can be a snapshot. The indexes the catalog pass doesn't return, which are those
+ * of time series collections or all of them when only <code>listCollections</code> is available,
+ * are then fetched as well, with a number of <code>listIndexes</code> commands at the same time.
+ * Since the first load happens when the first resource is reconciled and the others wait for it,
+ * the reconciliations after a restart compare their resources with the snapshot in memory. Only
+ * those that have changed or drifted go to the database. The <code>listIndexes</code> commands run
+ * on daemon threads of the catalog, which stop when they have been idle for a minute.
+ *
+ * <p>A reload replaces the cache as a whole. Every invalidation gets a number from a counter. A
+ * read that started before the last invalidation of a collection doesn't put its result in the
+ * cache, because it may have missed the change.
+ */
+class Catalog {
+  private static final String ADMIN = "admin";
+  private static final String DB = "db";
+  private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+  private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+  private static final String INDEXES = "indexes";
+  private static final String LIST_CATALOG = "$listCatalog";
+  private static final String MATCH = "$match";
+  private static final String MD = "md";
+  private static final String NAME = "name";
+  private static final String NE = "$ne";
+  private static final String OPTIONS = "options";
+  private static final String READY = "ready";
+  private static final String SPEC = "spec";
+  private static final String TIMESERIES = "timeseries";
+  private static final String TYPE = "type";
+  private static final String VIEW_ON = "viewOn";
+
+  private final MongoClient client;
+  private final MongoDatabase database;
+  private final ExecutorService executor;
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final Map<String, Long> invalidated = new ConcurrentHashMap<>();
+  private final Limits limits;
+  private final AtomicLong misses = new AtomicLong();
+  private final Duration refreshInterval;
+  private final int snapshotConcurrency;
+  private volatile Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private volatile Instant loaded;
+
+  /** With a <code>snapshotConcurrency</code> of zero the first load isn't a snapshot. */
+  Catalog(
+      final MongoClient client,
+      final String database,
+      final Duration refreshInterval,
+      final Limits limits,
+      final int snapshotConcurrency) {
+    this.client = client;
+    this.database = client.getDatabase(database);
+    this.refreshInterval = refreshInterval;
+    this.limits = limits;
+    this.snapshotConcurrency = snapshotConcurrency;
+    this.executor = snapshotConcurrency > 0 ? executor(database, snapshotConcurrency) : null;
+  }
+
+  private static Entry entry(final Document collection) {
+    return new Entry(collection.get(OPTIONS, new Document()), null);
+  }
+
+  private static Entry entryFromCatalog(final RawBsonDocument collection) {
+    final BsonDocument md = collection.getDocument(MD, new BsonDocument());
+
+    return new Entry(
+        DOCUMENT_CODEC.decode(
+            md.getDocument(OPTIONS, new BsonDocument()).asBsonReader(), DECODER_CONTEXT),
+        md.getArray(INDEXES, new BsonArray()).stream()
+            .map(BsonValue::asDocument)
+            .filter(i -> i.getBoolean(READY, BsonBoolean.TRUE).getValue())
+            .map(i -> i.getDocument(SPEC))
+            .toList());
+  }
+
+  private static ExecutorService executor(final String database, final int threads) {
+    final AtomicLong count = new AtomicLong();
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+              final Thread thread =
+                  new Thread(r, "catalog-" + database + "-" + count.incrementAndGet());
+
+              thread.setDaemon(true);
+
+              return thread;
+            });
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  MongoDatabase database() {
+    return database;
+  }
+
+  private Optional<Entry> entry(final String collection) {
+    refreshIfStale();
+
+    final long started = generation.get();
+
+    return ofNullable(entries.get(collection))
+        .map(
+            e -> {
+              hits.incrementAndGet();
+              return e;
+            })
+        .or(
+            () -> {
+              misses.incrementAndGet();
+              return lookup(collection).map(e -> put(collection, e, started));
+            });
+  }
+
+  boolean exists(final String collection) {
+    return entry(collection).isPresent();
+  }
+
+  long hits() {
+    return hits.get();
+  }
+
+  /** Returns the index specifications, which are usually raw documents. */
+  List<BsonDocument> indexes(final String collection) {
+    final long started = generation.get();
+
+    return entry(collection)
+        .map(
+            e ->
+                e.indexes != null
+                    ? e.indexes
+                    : put(collection, new Entry(e.options, listIndexes(collection)), started)
+                        .indexes)
+        .orElseGet(List::of);
+  }
+
+  void invalidate(final String collection) {
+    invalidated.put(collection, generation.incrementAndGet());
+    entries.remove(collection);
+  }
+
+  /** Indicates whether the collection was invalidated after the generation <code>started</code>. */
+  private boolean invalidatedSince(final String collection, final long started) {
+    return invalidated.getOrDefault(collection, 0L) > started;
+  }
+
+  private Map<String, Entry> listCatalog() {
+    return limits.read(
+        () ->
+            stream(
+                    client
+                        .getDatabase(ADMIN)
+                        .aggregate(
+                            list(
+                                new Document(LIST_CATALOG, new Document()),
+                                // The catalog has the buckets of time series collections, not the
+                                // user-facing options and indexes. Those are left to
+                                // listCollections and listIndexes.
+                                new Document(
+                                    MATCH,
+                                    new Document(DB, database.getName())
+                                        .append(TYPE, new Document(NE, TIMESERIES)))),
+                            RawBsonDocument.class)
+                        .iterator())
+                .collect(toMap(d -> d.getString(NAME).getValue(), Catalog::entryFromCatalog)));
+  }
+
+  /** Loads all collections of the database. The indexes may be left out. */
+  private Map<String, Entry> listCollections() {
+    return limits.read(
+        () ->
+            stream(database.listCollections().iterator())
+                .collect(toMap(d -> d.getString(NAME), Catalog::entry)));
+  }
+
+  private List<BsonDocument> listIndexes(final String collection) {
+    return limits.read(
+        () ->
+            stream(database.getCollection(collection).listIndexes(RawBsonDocument.class).iterator())
+                .map(BsonDocument.class::cast)
+                .toList());
+  }
+
+  /**
+   * Fetches the indexes of the collections at the same time, with at most <code>
+   * snapshotConcurrency</code> commands in flight. Each command also takes a read permit.
+   * Collections for which it fails are left out.
+   */
+  private Map<String, List<BsonDocument>> listIndexes(final List<String> collections) {
+    final Map<String, CompletableFuture<List<BsonDocument>>> futures =
+        collections.stream()
+            .collect(toMap(c -> c, c -> supplyAsync(() -> listIndexes(c), executor)));
+
+    return futures.entrySet().stream()
+        .flatMap(
+            e ->
+                tryToGet(
+                    () -> e.getValue().join(),
+                    ex -> {
+                      LOGGER.log(FINE, ex, () -> "Can't list the indexes of " + e.getKey());
+                      return null;
+                    })
+                    .map(i -> pair(e.getKey(), i))
+                    .stream())
+        .collect(toMap(p -> p.first, p -> p.second));
+  }
+
+  private void load(final boolean snapshot) {
+    final long started = generation.get();
+    final Map<String, Entry> catalog =
+        tryToGet(
+                this::listCatalog,
+                e -> {
+                  LOGGER.log(FINE, e, () -> "$listCatalog is not available: " + e.getMessage());
+                  return null;
+                })
+            .orElseGet(this::listCollections);
+    final Map<String, Entry> collections = snapshot ? snapshot(catalog) : catalog;
+
+    final Map<String, Entry> fresh = new ConcurrentHashMap<>(collections);
+
+    fresh.keySet().removeIf(c -> invalidatedSince(c, started));
+    entries = fresh;
+    // An invalidation can happen between the filter and the swap. It then removed the entry from
+    // the old map.
+    fresh.keySet().removeIf(c -> invalidatedSince(c, started));
+    loaded = now();
+    LOGGER.info(
+        () ->
+            "Loaded catalog of database "
+                + database.getName()
+                + " with "
+                + collections.size()
+                + " collections, "
+                + hits.get()
+                + " hits, "
+                + misses.get()
+                + " misses");
+  }
+
+  /** Looks up a collection that isn't in the cache. The indexes may be left out. */
+  private Optional<Entry> lookup(final String collection) {
+    return ofNullable(
+            limits.read(() -> database.listCollections().filter(eq(NAME, collection)).first()))
+        .map(Catalog::entry);
+  }
+
+  long misses() {
+    return misses.get();
+  }
+
+  Optional<Document> options(final String collection) {
+    return entry(collection).map(e -> e.options);
+  }
+
+  /**
+   * Puts the entry in the cache, unless the collection was invalidated after the read of the entry
+   * started. The second check covers an invalidation that happens at the same time.
+   */
+  private Entry put(final String collection, final Entry entry, final long started) {
+    final Map<String, Entry> current = entries;
+
+    if (!invalidatedSince(collection, started)) {
+      current.put(collection, entry);
+
+      if (invalidatedSince(collection, started)) {
+        current.remove(collection, entry);
+      }
+    }
+
+    return entry;
+  }
+
+  /** Only a reload takes the lock. The check happens without it. */
+  private void refreshIfStale() {
+    if (stale()) {
+      synchronized (this) {
+        if (stale()) {
+          load(loaded == null && snapshotConcurrency > 0);
+        }
+      }
+    }
+  }
+
+  /** Adds the indexes of the collections for which the catalog doesn't have them. */
+  private Map<String, Entry> snapshot(final Map<String, Entry> collections) {
+    final List<String> missing =
+        collections.entrySet().stream()
+            .filter(e -> e.getValue().indexes == null && !e.getValue().options.containsKey(VIEW_ON))
+            .map(Map.Entry::getKey)
+            .toList();
+    final Map<String, List<BsonDocument>> indexes =
+        missing.isEmpty() ? map() : listIndexes(missing);
+
+    LOGGER.info(
+        () ->
+            "Took a snapshot of database "
+                + database.getName()
+                + " with "
+                + collections.size()
+                + " collections, listing the indexes of "
+                + indexes.size()
+                + " of them separately");
+
+    return collections.entrySet().stream()
+        .collect(
+            toMap(
+                Map.Entry::getKey,
+                e ->
+                    ofNullable(indexes.get(e.getKey()))
+                        .map(i -> new Entry(e.getValue().options, i))
+                        .orElse(e.getValue())));
+  }
+
+  private boolean stale() {
+    final Instant last = loaded;
+
+    return last == null || last.plus(refreshInterval).isBefore(now());
+  }
+
+  private static class Entry {
+    private final List<BsonDocument> indexes;
+    private final Document options;
+
+    private Entry(final Document options, final List<BsonDocument> indexes) {
+      this.options = options;
+      this.indexes = indexes;
+    }
+  }
+}
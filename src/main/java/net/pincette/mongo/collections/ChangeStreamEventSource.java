@@ -0,0 +1,208 @@
+package net.pincette.mongo.collections;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static java.time.Instant.now;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.set;
+import static net.pincette.util.Util.tryToDo;
+import static net.pincette.util.Util.tryToDoSilent;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.javaoperatorsdk.operator.processing.event.Event;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.AbstractEventSource;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+/**
+ * Watches the database for changes to collections and their indexes and triggers the resource that
+ * owns the collection. This way drift is noticed right away instead of with the next resync. The
+ * resume token is saved in a collection, so a restart of the operator continues where it left off.
+ * When the history is lost all owners are triggered.
+ */
+class ChangeStreamEventSource extends AbstractEventSource {
+  private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+  private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+  private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+  private static final Set<String> OPERATION_TYPES =
+      set("createIndexes", "dropIndexes", "drop", "modify", "rename");
+  private static final String OPERATION_TYPE = "operationType";
+  private static final Duration RETRY_INTERVAL = Duration.ofSeconds(30);
+  private static final Duration SAVE_INTERVAL = Duration.ofSeconds(10);
+  private static final String TIME = "time";
+  private static final String TOKEN = "token";
+
+  private final MongoDatabase database;
+  private final Consumer<String> onChange;
+  private final Map<String, ResourceID> owners;
+  private final MongoCollection<Document> tokens;
+  private volatile boolean active;
+  private Instant saved = now();
+  private BsonDocument savedToken;
+  private BsonDocument token;
+  private Thread watcher;
+
+  /**
+   * The <code>onChange</code> function receives the name of a collection that was changed, before
+   * its owner is triggered.
+   */
+  ChangeStreamEventSource(
+      final MongoDatabase database,
+      final String tokenCollection,
+      final Map<String, ResourceID> owners,
+      final Consumer<String> onChange) {
+    this.database = database;
+    this.tokens = database.getCollection(tokenCollection);
+    this.owners = owners;
+    this.onChange = onChange;
+  }
+
+  private static boolean historyLost(final MongoException e) {
+    return e.getCode() == CHANGE_STREAM_HISTORY_LOST || e.getCode() == CHANGE_STREAM_FATAL_ERROR;
+  }
+
+  /** Indicates whether the change stream is open. */
+  boolean active() {
+    return active;
+  }
+
+  private ChangeStreamIterable<Document> changeStream() {
+    final ChangeStreamIterable<Document> changeStream =
+        database
+            .watch(list(Aggregates.match(in(OPERATION_TYPE, OPERATION_TYPES))))
+            .showExpandedEvents(true)
+            .maxAwaitTime(1, SECONDS);
+
+    return token != null ? changeStream.resumeAfter(token) : changeStream;
+  }
+
+  private void changed(final String collection) {
+    if (!collection.equals(tokens.getNamespace().getCollectionName())) {
+      onChange.accept(collection);
+      ofNullable(owners.get(collection)).ifPresent(this::trigger);
+    }
+  }
+
+  private void handle(final ChangeStreamDocument<Document> event) {
+    LOGGER.fine(() -> "Change stream event " + event);
+    Stream.of(event.getNamespace(), event.getDestinationNamespace())
+        .filter(Objects::nonNull)
+        .map(MongoNamespace::getCollectionName)
+        .forEach(this::changed);
+  }
+
+  private void loadToken() {
+    token =
+        ofNullable(tokens.find(eq(database.getName())).first())
+            .map(d -> d.get(TOKEN, Document.class))
+            .map(Document::toBsonDocument)
+            .orElse(null);
+    savedToken = token;
+  }
+
+  private void resyncAll() {
+    LOGGER.warning(() -> "The change stream history was lost, triggering all resources");
+    owners.keySet().forEach(this::changed);
+  }
+
+  private void run() {
+    tryToDo(this::loadToken, e -> LOGGER.log(SEVERE, e, e::getMessage));
+
+    while (isRunning()) {
+      try {
+        watch();
+      } catch (MongoException e) {
+        if (e.getCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+          LOGGER.log(WARNING, "Change streams are not supported, only resyncing periodically", e);
+          return;
+        }
+
+        if (historyLost(e)) {
+          token = null;
+          resyncAll();
+        } else {
+          retry(e);
+        }
+      } catch (RuntimeException e) {
+        // Anything else, such as an event that can't be handled, would otherwise end the thread.
+        retry(e);
+      }
+    }
+  }
+
+  private void retry(final RuntimeException e) {
+    LOGGER.log(SEVERE, e, e::getMessage);
+    tryToDoSilent(() -> Thread.sleep(RETRY_INTERVAL.toMillis()));
+  }
+
+  private void saveToken() {
+    if (token != null && !token.equals(savedToken) && saved.plus(SAVE_INTERVAL).isBefore(now())) {
+      tokens.updateOne(
+          eq(database.getName()),
+          Updates.combine(Updates.set(TOKEN, token), Updates.set(TIME, now().toString())),
+          new UpdateOptions().upsert(true));
+      savedToken = token;
+      saved = now();
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!isRunning()) {
+      super.start();
+      watcher = new Thread(this::run, "change-stream-" + database.getName());
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    super.stop();
+    ofNullable(watcher).ifPresent(Thread::interrupt);
+    active = false;
+  }
+
+  private void trigger(final ResourceID resource) {
+    getEventHandler().handleEvent(new Event(resource));
+  }
+
+  private void watch() {
+    try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = changeStream().cursor()) {
+      active = true;
+      LOGGER.info(() -> "Watching database " + database.getName());
+
+      while (isRunning()) {
+        ofNullable(cursor.tryNext()).ifPresent(this::handle);
+        // The post-batch resume token advances even when no events pass the filter.
+        ofNullable(cursor.getResumeToken()).ifPresent(t -> token = t);
+        saveToken();
+      }
+    } finally {
+      // The reconciler falls back to the normal resync interval when the stream isn't open.
+      active = false;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Math.min;
+import static java.time.Duration.between;
+import static java.time.Instant.now;
+import static java.util.Optional.ofNullable;
+import static net.pincette.mongo.collections.Application.LOGGER;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Stops the reconciliations from going to the MongoDB cluster when it can't be reached. The breaker
+ * opens after a number of consecutive connectivity failures. Errors returned by the server don't
+ * count, because then the cluster is reachable. When the open interval has passed, the next failure
+ * opens the breaker again, each time for twice as long up to a limit. A success closes it.
+ */
+class CircuitBreaker {
+  private static final int MAX_OPEN_SHIFT = 4;
+
+  private final Duration openInterval;
+  private final int threshold;
+  private int failures;
+  private Instant openUntil;
+  private int trips;
+
+  CircuitBreaker(final int threshold, final Duration openInterval) {
+    this.threshold = threshold;
+    this.openInterval = openInterval;
+  }
+
+  private static boolean connectivity(final Throwable t) {
+    return Stream.iterate(t, Objects::nonNull, Throwable::getCause)
+        .anyMatch(e -> e instanceof MongoException && !(e instanceof MongoServerException));
+  }
+
+  synchronized void failed(final Throwable t) {
+    if (connectivity(t) && ++failures >= threshold) {
+      final Duration open = openInterval.multipliedBy(1L << min(trips++, MAX_OPEN_SHIFT));
+
+      openUntil = now().plus(open);
+      failures = threshold - 1;
+      LOGGER.warning(() -> "MongoDB can't be reached, pausing reconciliations for " + open);
+    }
+  }
+
+  /** Returns how long the breaker remains open, if it is open. */
+  synchronized Optional<Duration> open() {
+    return ofNullable(openUntil).map(u -> between(now(), u)).filter(d -> d.toMillis() > 0);
+  }
+
+  synchronized void succeeded() {
+    if (openUntil != null) {
+      LOGGER.info("MongoDB can be reached again");
+    }
+
+    failures = 0;
+    openUntil = null;
+    trips = 0;
+  }
+}
@@ -0,0 +1,79 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.BsonValues.readBoolean;
+import static net.pincette.mongo.collections.BsonValues.readNumber;
+
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/** Converts between a collation as MongoDB reports it and the specification. */
+class CollationCodec implements Codec<Collation> {
+  private static final String ALTERNATE = "alternate";
+  private static final String BACKWARDS = "backwards";
+  private static final String CASE_FIRST = "caseFirst";
+  private static final String CASE_LEVEL = "caseLevel";
+  private static final String LOCALE = "locale";
+  private static final String MAX_VARIABLE = "maxVariable";
+  private static final String NORMALIZATION = "normalization";
+  private static final String NUMERIC_ORDERING = "numericOrdering";
+  private static final String STRENGTH = "strength";
+
+  /** Fields that aren't set are left out, so MongoDB applies its defaults. */
+  private static void writeString(final BsonWriter writer, final String name, final String value) {
+    if (value != null) {
+      writer.writeString(name, value);
+    }
+  }
+
+  @Override
+  public Collation decode(final BsonReader reader, final DecoderContext decoderContext) {
+    final Collation collation = new Collation();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      switch (reader.readName()) {
+        case ALTERNATE -> collation.alternate = reader.readString();
+        case BACKWARDS -> collation.backwards = readBoolean(reader);
+        case CASE_FIRST -> collation.caseFirst = reader.readString();
+        case CASE_LEVEL -> collation.caseLevel = readBoolean(reader);
+        case LOCALE -> collation.locale = reader.readString();
+        case MAX_VARIABLE -> collation.maxVariable = reader.readString();
+        case NORMALIZATION -> collation.normalization = readBoolean(reader);
+        case NUMERIC_ORDERING -> collation.numericOrdering = readBoolean(reader);
+        case STRENGTH -> collation.strength = readNumber(reader).intValue();
+        default -> reader.skipValue();
+      }
+    }
+
+    reader.readEndDocument();
+
+    return collation;
+  }
+
+  @Override
+  public void encode(
+      final BsonWriter writer, final Collation collation, final EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    writeString(writer, LOCALE, collation.locale);
+    writer.writeBoolean(CASE_LEVEL, collation.caseLevel);
+    writeString(writer, CASE_FIRST, collation.caseFirst);
+    writer.writeInt32(STRENGTH, collation.strength);
+    writer.writeBoolean(NUMERIC_ORDERING, collation.numericOrdering);
+    writeString(writer, ALTERNATE, collation.alternate);
+    writeString(writer, MAX_VARIABLE, collation.maxVariable);
+    writer.writeBoolean(NORMALIZATION, collation.normalization);
+    writer.writeBoolean(BACKWARDS, collation.backwards);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<Collation> getEncoderClass() {
+    return Collation.class;
+  }
+}
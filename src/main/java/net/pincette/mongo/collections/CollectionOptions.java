@@ -0,0 +1,222 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Boolean.FALSE;
+import static java.util.Optional.ofNullable;
+import static net.pincette.mongo.collections.BsonValues.readMap;
+import static net.pincette.mongo.collections.IndexIdentity.canonical;
+import static net.pincette.util.Pair.pair;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import net.pincette.mongo.collections.MongoCollectionSpec.TimeSeries;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonReader;
+import org.bson.Document;
+
+/**
+ * Compares the options of an existing collection with the specification. For the options that
+ * <code>collMod</code> can change, fields that are not set in the specification are left alone,
+ * except <code>changeStreamPreAndPostImages</code>, which is a plain boolean. The other options can
+ * only be changed with a migration. The bucketing of a time-series collection is an exception. It
+ * can be changed with <code>collMod</code> as long as the maximum span and the rounding of the
+ * buckets don't go down. A granularity stands for its preset span and rounding.
+ */
+class CollectionOptions {
+  private static final String BUCKET_MAX_SPAN_SECONDS = "bucketMaxSpanSeconds";
+  private static final String BUCKET_ROUNDING_SECONDS = "bucketRoundingSeconds";
+  private static final String CAPPED = "capped";
+  private static final String CHANGE_STREAM_PRE_AND_POST_IMAGES = "changeStreamPreAndPostImages";
+  private static final String CLUSTERED = "clustered";
+  private static final String CLUSTERED_INDEX = "clusteredIndex";
+  private static final String COLLATION = "collation";
+  private static final String DEFAULT_VALIDATION_ACTION = "error";
+  private static final String DEFAULT_VALIDATION_LEVEL = "strict";
+  private static final String ENABLED = "enabled";
+  private static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
+  private static final String GRANULARITY = "granularity";
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String META_FIELD = "metaField";
+  private static final String TIME_FIELD = "timeField";
+  private static final String TIME_SERIES = "timeSeries";
+  private static final String TIMESERIES = "timeseries";
+  private static final String VALIDATION_ACTION = "validationAction";
+  private static final String VALIDATION_LEVEL = "validationLevel";
+  private static final String VALIDATOR = "validator";
+
+  private CollectionOptions() {}
+
+  private static long bucketMaxSpan(final Document bucketing) {
+    return ofNullable(bucketing.getString(GRANULARITY))
+        .map(Granularity::valueOf)
+        .map(
+            g ->
+                switch (g) {
+                  case hours -> 2592000L;
+                  case minutes -> 86400L;
+                  case seconds -> 3600L;
+                })
+        .orElseGet(() -> number(bucketing, BUCKET_MAX_SPAN_SECONDS));
+  }
+
+  private static long bucketRounding(final Document bucketing) {
+    return ofNullable(bucketing.getString(GRANULARITY))
+        .map(Granularity::valueOf)
+        .map(
+            g ->
+                switch (g) {
+                  case hours -> 86400L;
+                  case minutes -> 3600L;
+                  case seconds -> 60L;
+                })
+        .orElseGet(() -> number(bucketing, BUCKET_ROUNDING_SECONDS));
+  }
+
+  /**
+   * Returns the bucketing of the specification in the form MongoDB reports it. When only one of the
+   * custom bucketing fields is set, the other gets the same value.
+   */
+  private static Document bucketing(final TimeSeries timeSeries) {
+    return timeSeries.bucketMaxSpan() != -1
+        ? new Document(BUCKET_MAX_SPAN_SECONDS, timeSeries.bucketMaxSpan())
+            .append(BUCKET_ROUNDING_SECONDS, timeSeries.bucketRounding())
+        : new Document(
+            GRANULARITY, ofNullable(timeSeries.granularity).orElse(Granularity.seconds).name());
+  }
+
+  /**
+   * Returns the fields for <code>collMod</code> that bring the collection options in line with the
+   * specification. The document is empty when there is nothing to change.
+   */
+  static Document changes(final MongoCollectionSpec spec, final Document options) {
+    final Document changes = new Document();
+
+    if (spec.validator != null
+        && !Objects.equals(
+            validator(BsonValues.toBson(spec.validator)),
+            ofNullable(options.get(VALIDATOR, Document.class))
+                .map(v -> validator(v.toBsonDocument()))
+                .orElse(null))) {
+      changes.append(VALIDATOR, BsonValues.toBson(spec.validator));
+    }
+
+    if (spec.validationLevel != null
+        && !spec.validationLevel
+            .name()
+            .equals(options.get(VALIDATION_LEVEL, DEFAULT_VALIDATION_LEVEL))) {
+      changes.append(VALIDATION_LEVEL, spec.validationLevel.name());
+    }
+
+    if (spec.validationAction != null
+        && !spec.validationAction
+            .name()
+            .equals(options.get(VALIDATION_ACTION, DEFAULT_VALIDATION_ACTION))) {
+      changes.append(VALIDATION_ACTION, spec.validationAction.name());
+    }
+
+    if (spec.expireAfterSeconds != -1
+        && spec.expireAfterSeconds
+            != ofNullable(options.get(EXPIRE_AFTER_SECONDS, Number.class))
+                .map(Number::longValue)
+                .orElse(-1L)) {
+      changes.append(EXPIRE_AFTER_SECONDS, spec.expireAfterSeconds);
+    }
+
+    if (spec.changeStreamPreAndPostImages
+        != options
+            .get(CHANGE_STREAM_PRE_AND_POST_IMAGES, new Document())
+            .getBoolean(ENABLED, false)) {
+      changes.append(
+          CHANGE_STREAM_PRE_AND_POST_IMAGES,
+          new Document(ENABLED, spec.changeStreamPreAndPostImages));
+    }
+
+    timeSeriesChange(spec.timeSeries, options.get(TIMESERIES, Document.class))
+        .ifPresent(c -> changes.append(TIMESERIES, c));
+
+    return changes;
+  }
+
+  private static boolean clustered(final Document options) {
+    // The catalog has a boolean and listCollections has the index specification.
+    return ofNullable(options.get(CLUSTERED_INDEX)).filter(c -> !FALSE.equals(c)).isPresent();
+  }
+
+  private static Collation collation(final Document options) {
+    return ofNullable(options.get(COLLATION, Document.class))
+        .map(c -> MAPPER.convertValue(c, Collation.class))
+        .orElse(null);
+  }
+
+  /** Returns the names of the options that differ, but can't be changed on the collection. */
+  static List<String> immutableChanges(final MongoCollectionSpec spec, final Document options) {
+    return Stream.of(
+            pair(CAPPED, spec.capped != options.getBoolean(CAPPED, false)),
+            pair(CLUSTERED, spec.clustered != clustered(options)),
+            pair(COLLATION, !Objects.equals(spec.collation, collation(options))),
+            pair(
+                TIME_SERIES,
+                !sameTimeSeries(spec.timeSeries, options.get(TIMESERIES, Document.class))))
+        .filter(pair -> pair.second)
+        .map(pair -> pair.first)
+        .toList();
+  }
+
+  private static long number(final Document document, final String field) {
+    return ofNullable(document.get(field, Number.class)).map(Number::longValue).orElse(-1L);
+  }
+
+  private static boolean sameBucketing(final Document bucketing, final Document options) {
+    return ofNullable(bucketing.getString(GRANULARITY))
+        .map(g -> g.equals(options.getString(GRANULARITY)))
+        .orElseGet(
+            () ->
+                options.getString(GRANULARITY) == null
+                    && bucketMaxSpan(bucketing) == bucketMaxSpan(options)
+                    && bucketRounding(bucketing) == bucketRounding(options));
+  }
+
+  private static boolean sameFields(final TimeSeries timeSeries, final Document options) {
+    return options != null
+        && timeSeries.timeField.equals(options.getString(TIME_FIELD))
+        && Objects.equals(timeSeries.metaField, options.getString(META_FIELD));
+  }
+
+  private static boolean sameTimeSeries(final TimeSeries timeSeries, final Document options) {
+    return timeSeries == null
+        ? options == null
+        : sameFields(timeSeries, options)
+            && (sameBucketing(bucketing(timeSeries), options)
+                || timeSeriesChange(timeSeries, options).isPresent());
+  }
+
+  /**
+   * Returns the <code>collMod</code> value that changes the bucketing of the time-series
+   * collection, if it differs and the change doesn't make the buckets smaller.
+   */
+  private static Optional<Document> timeSeriesChange(
+      final TimeSeries timeSeries, final Document options) {
+    return ofNullable(timeSeries)
+        .filter(t -> sameFields(t, options))
+        .map(CollectionOptions::bucketing)
+        .filter(b -> !sameBucketing(b, options))
+        .filter(
+            b ->
+                bucketMaxSpan(b) >= bucketMaxSpan(options)
+                    && bucketRounding(b) >= bucketRounding(options));
+  }
+
+  /**
+   * Returns the validator in plain values. The specification is first converted in the same way as
+   * when it is written, so its dates and object IDs compare equal to the ones MongoDB returns.
+   */
+  private static Object validator(final BsonDocument validator) {
+    try (BsonReader reader = new BsonDocumentReader(validator)) {
+      return canonical(readMap(reader));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Integer.parseInt;
+import static java.util.stream.IntStream.rangeClosed;
+
+import java.time.ZonedDateTime;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A cron expression with the five fields minute, hour, day of the month, month and day of the week.
+ * A field can be <code>*</code>, a number, a range like <code>1-5</code>, a step like <code>
+ * *&#47;15
+ * </code> or <code>0-30/10</code>, or a comma-separated list of those. Sunday is both 0 and 7. As
+ * in cron, a moment matches either the day of the month or the day of the week when both are
+ * restricted.
+ */
+class Cron {
+  private static final String ANY = "*";
+
+  private final boolean anyDayOfMonth;
+  private final boolean anyDayOfWeek;
+  private final BitSet daysOfMonth;
+  private final BitSet daysOfWeek;
+  private final BitSet hours;
+  private final BitSet minutes;
+  private final BitSet months;
+
+  private Cron(final List<String> fields) {
+    minutes = field(fields.get(0), 0, 59);
+    hours = field(fields.get(1), 0, 23);
+    daysOfMonth = field(fields.get(2), 1, 31);
+    months = field(fields.get(3), 1, 12);
+    daysOfWeek = field(fields.get(4), 0, 7);
+    anyDayOfMonth = fields.get(2).equals(ANY);
+    anyDayOfWeek = fields.get(4).equals(ANY);
+
+    if (daysOfWeek.get(7)) {
+      daysOfWeek.set(0);
+    }
+  }
+
+  private static BitSet field(final String field, final int min, final int max) {
+    final BitSet bits = new BitSet(max + 1);
+
+    for (final String part : field.split(",")) {
+      final String[] step = part.split("/");
+      final String[] range = step[0].split("-");
+      final int from = step[0].equals(ANY) ? min : parseInt(range[0]);
+      final int to = step[0].equals(ANY) ? max : parseInt(range.length > 1 ? range[1] : range[0]);
+      final int increment = step.length > 1 ? parseInt(step[1]) : 1;
+
+      if (from < min || to > max || from > to || increment < 1) {
+        throw new IllegalArgumentException("Invalid cron field " + field);
+      }
+
+      // A single value with a step runs to the end, as in cron.
+      rangeClosed(from, step.length > 1 && range.length == 1 ? max : to)
+          .filter(i -> (i - from) % increment == 0)
+          .forEach(bits::set);
+    }
+
+    return bits;
+  }
+
+  static Cron parse(final String expression) {
+    final List<String> fields = List.of(expression.trim().split("\\s+"));
+
+    if (fields.size() != 5) {
+      throw new IllegalArgumentException(
+          "The cron expression " + expression + " doesn't have five fields");
+    }
+
+    return new Cron(fields);
+  }
+
+  private boolean day(final ZonedDateTime time) {
+    final boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+    final boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+
+    return anyDayOfMonth || anyDayOfWeek ? dayOfMonth && dayOfWeek : dayOfMonth || dayOfWeek;
+  }
+
+  /** Indicates whether the minute of <code>time</code> matches the expression. */
+  boolean matches(final ZonedDateTime time) {
+    return minutes.get(time.getMinute())
+        && hours.get(time.getHour())
+        && months.get(time.getMonthValue())
+        && day(time);
+  }
+}
@@ -0,0 +1,55 @@
+package net.pincette.mongo.collections;
+
+import static com.fasterxml.jackson.databind.MapperFeature.SORT_PROPERTIES_ALPHABETICALLY;
+import static com.fasterxml.jackson.databind.SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.joining;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+import static net.pincette.util.Util.toHex;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import java.security.MessageDigest;
+import java.util.List;
+import org.bson.BsonDocument;
+
+/**
+ * Stable hashes of the desired and the observed state of a collection. They make it possible to
+ * skip a reconciliation when neither has changed.
+ */
+class Fingerprint {
+  private static final String ALGORITHM = "SHA-256";
+  private static final ObjectMapper MAPPER =
+      JsonMapper.builder()
+          .enable(SORT_PROPERTIES_ALPHABETICALLY)
+          .enable(ORDER_MAP_ENTRIES_BY_KEYS)
+          .build();
+  private static final String NAME = "name";
+  private static final String SPEC = "spec";
+
+  private Fingerprint() {}
+
+  private static String hash(final byte[] bytes) {
+    return tryToGetRethrow(() -> MessageDigest.getInstance(ALGORITHM))
+        .map(d -> new String(toHex(d.digest(bytes))))
+        .orElse(null);
+  }
+
+  static String indexes(final List<? extends BsonDocument> indexes) {
+    return hash(
+        indexes.stream()
+            .sorted(comparing(i -> i.getString(NAME).getValue()))
+            .map(BsonDocument::toJson)
+            .collect(joining("\n"))
+            .getBytes(UTF_8));
+  }
+
+  static String spec(final String name, final MongoCollectionSpec spec) {
+    return tryToGetRethrow(() -> MAPPER.writeValueAsBytes(map(pair(NAME, name), pair(SPEC, spec))))
+        .map(Fingerprint::hash)
+        .orElse(null);
+  }
+}
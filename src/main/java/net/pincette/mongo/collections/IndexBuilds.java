@@ -0,0 +1,295 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Integer.MAX_VALUE;
+import static java.time.Duration.between;
+import static java.time.Instant.now;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.StreamUtil.stream;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionStatus.IndexBuild;
+import org.bson.Document;
+
+/**
+ * Runs index builds in the background, so a reconciliation doesn't wait for them. The progress is
+ * taken from <code>$currentOp</code>, which also finds builds that were started before a restart of
+ * the operator. It is only polled for namespaces with a build that is known to run. When the
+ * operator isn't allowed to run it, the progress isn't available and the builds the operator has
+ * submitted itself are still followed. Builds don't hold a DDL permit while they run. The number of
+ * concurrent builds can be limited. A slot is then reserved before the indexes that are replaced
+ * are dropped, and it is released when the build completes. The limit applies to the whole cluster,
+ * so all operator replicas share it. A slot is only free when <code>$currentOp</code> shows fewer
+ * namespaces with a build than the limit, counting the slots this replica has reserved. Without
+ * access to <code>$currentOp</code> the limit applies per replica.
+ */
+class IndexBuilds {
+  private static final String ADMIN = "admin";
+  private static final String ALL_USERS = "allUsers";
+  private static final String COMMAND = "command";
+  private static final String CREATE_INDEXES = "createIndexes";
+  private static final String CURRENT_OP = "$currentOp";
+  private static final String DONE = "done";
+  private static final String ERROR = "error";
+  private static final String EXISTS = "$exists";
+  private static final String INDEXES = "indexes";
+  private static final String MATCH = "$match";
+  private static final String METRIC_DURATION = "mongo.collections.index.build";
+  private static final String METRIC_RUNNING = "mongo.collections.index.builds.running";
+  private static final String MSG = "msg";
+  private static final String NAME = "name";
+  private static final String NS = "ns";
+  private static final String OUTCOME = "outcome";
+  private static final String PROGRESS = "progress";
+  private static final String SECS_RUNNING = "secs_running";
+  private static final String SUCCESS = "success";
+  private static final String TOTAL = "total";
+  private static final int UNAUTHORIZED = 13;
+
+  private final Map<MongoNamespace, Build> builds = new ConcurrentHashMap<>();
+  private final MongoClient client;
+  private final ExecutorService executor = newCachedThreadPool();
+  private final Limits limits;
+  private final int maxConcurrent;
+  private final Consumer<MongoNamespace> onDone;
+  private final MeterRegistry registry;
+  private final Set<MongoNamespace> reserved = ConcurrentHashMap.newKeySet();
+  private final Semaphore slots;
+  private volatile boolean progress = true;
+
+  IndexBuilds(
+      final MongoClient client,
+      final Limits limits,
+      final int maxConcurrent,
+      final MeterRegistry registry,
+      final Consumer<MongoNamespace> onDone) {
+    this.client = client;
+    this.limits = limits;
+    this.maxConcurrent = maxConcurrent;
+    this.slots = new Semaphore(maxConcurrent > 0 ? maxConcurrent : MAX_VALUE);
+    this.registry = registry;
+    this.onDone = onDone;
+    registry.gaugeMapSize(METRIC_RUNNING, Tags.empty(), builds);
+  }
+
+  private static IndexBuild indexBuild(final Document op) {
+    final Document progress = op.get(PROGRESS, new Document());
+
+    return new IndexBuild(
+        op.get(COMMAND, new Document()).getList(INDEXES, Document.class, list()).stream()
+            .map(i -> i.getString(NAME))
+            .toList(),
+        op.getString(MSG),
+        now().minusSeconds(ofNullable(op.get(SECS_RUNNING, Number.class)).orElse(0).longValue()),
+        ofNullable(progress.get(DONE, Number.class)).map(Number::longValue).orElse(-1L),
+        ofNullable(progress.get(TOTAL, Number.class)).map(Number::longValue).orElse(-1L));
+  }
+
+  /**
+   * Returns the number of namespaces other than the given one with a build in the cluster or a slot
+   * reserved by this replica.
+   */
+  private long clusterBuilds(final MongoNamespace namespace) {
+    final Set<String> namespaces = new HashSet<>(runningNamespaces());
+
+    reserved.forEach(n -> namespaces.add(n.getFullName()));
+    builds.entrySet().stream()
+        .filter(e -> !e.getValue().future.isDone())
+        .forEach(e -> namespaces.add(e.getKey().getFullName()));
+    namespaces.remove(namespace.getFullName());
+
+    return namespaces.size();
+  }
+
+  /**
+   * Returns the build that was submitted for the namespace if it has completed. It is then
+   * forgotten.
+   */
+  Optional<Build> completed(final MongoNamespace namespace) {
+    return ofNullable(builds.get(namespace))
+        .filter(b -> b.future.isDone())
+        .map(b -> builds.remove(namespace));
+  }
+
+  private <T> List<T> currentOp(
+      final Document match, final Function<Stream<Document>, List<T>> result) {
+    if (!progress) {
+      return list();
+    }
+
+    try {
+      return result.apply(readCurrentOp(match));
+    } catch (MongoServerException e) {
+      if (e.getCode() != UNAUTHORIZED) {
+        throw e;
+      }
+
+      LOGGER.warning(
+          () ->
+              "The progress of index builds isn't available, because the operator isn't allowed "
+                  + "to run $currentOp: "
+                  + e.getMessage());
+      progress = false;
+
+      return list();
+    }
+  }
+
+  private List<IndexBuild> currentOp(final MongoNamespace namespace) {
+    return currentOp(
+        new Document(NS, namespace.getFullName()),
+        ops ->
+            ops
+                .map(IndexBuilds::indexBuild)
+                // The client operation and the build thread both show up. Only the latter has
+                // progress.
+                .collect(toMap(b -> b.names, identity(), (b1, b2) -> b1.total >= 0 ? b1 : b2))
+                .values()
+                .stream()
+                .toList());
+  }
+
+  private Stream<Document> readCurrentOp(final Document match) {
+    return limits.read(
+        () ->
+            stream(
+                client
+                    .getDatabase(ADMIN)
+                    .aggregate(
+                        list(
+                            new Document(CURRENT_OP, new Document(ALL_USERS, true)),
+                            new Document(
+                                MATCH,
+                                new Document(match)
+                                    .append(
+                                        COMMAND + "." + CREATE_INDEXES,
+                                        new Document(EXISTS, true)))))
+                    .iterator())
+                .toList()
+                .stream());
+  }
+
+  /** Releases the slot of the namespace if it wasn't used for a build. */
+  void release(final MongoNamespace namespace) {
+    if (reserved.remove(namespace)) {
+      slots.release();
+    }
+  }
+
+  /**
+   * Reserves a slot for a build of the namespace. It returns <code>false</code> if none is free.
+   */
+  boolean reserve(final MongoNamespace namespace) {
+    if (reserved.contains(namespace)) {
+      return true;
+    }
+
+    if (!slots.tryAcquire()) {
+      return false;
+    }
+
+    if (maxConcurrent > 0 && clusterBuilds(namespace) >= maxConcurrent) {
+      slots.release();
+      return false;
+    }
+
+    reserved.add(namespace);
+
+    return true;
+  }
+
+  /**
+   * Returns the running builds of the namespace. With <code>known</code> set, a build may be
+   * running that this operator instance didn't submit, because it was found before a restart.
+   */
+  List<IndexBuild> running(final MongoNamespace namespace, final boolean known) {
+    final List<IndexBuild> running =
+        known || builds.containsKey(namespace) ? currentOp(namespace) : list();
+
+    return running.isEmpty()
+        ? ofNullable(builds.get(namespace))
+            .filter(b -> !b.future.isDone())
+            .map(b -> list(new IndexBuild(b.names, null, b.started, -1, -1)))
+            .orElseGet(List::of)
+        : running;
+  }
+
+  /** The namespaces in which an index build runs, also the ones this replica didn't start. */
+  private List<String> runningNamespaces() {
+    return currentOp(
+        new Document(),
+        ops -> ops.map(op -> op.getString(NS)).filter(Objects::nonNull).distinct().toList());
+  }
+
+  void submit(
+      final MongoCollection<Document> collection,
+      final List<IndexModel> indexes,
+      final List<String> names) {
+    final Build build =
+        new Build(
+            names,
+            supplyAsync(
+                () -> limits.indexBuild(() -> collection.createIndexes(indexes)), executor));
+
+    final boolean slot = reserved.remove(collection.getNamespace());
+
+    builds.put(collection.getNamespace(), build);
+    build.future.whenComplete(
+        (r, e) -> {
+          if (slot) {
+            slots.release();
+          }
+
+          Timer.builder(METRIC_DURATION)
+              .description("The duration of index builds")
+              .tag(OUTCOME, e == null ? SUCCESS : ERROR)
+              .publishPercentileHistogram()
+              .register(registry)
+              .record(between(build.started, now()));
+          onDone.accept(collection.getNamespace());
+        });
+  }
+
+  static class Build {
+    final CompletableFuture<List<String>> future;
+    final List<String> names;
+    final Instant started = now();
+
+    private Build(final List<String> names, final CompletableFuture<List<String>> future) {
+      this.names = names;
+      this.future = future;
+    }
+
+    Optional<Throwable> error() {
+      return future
+          .handle((r, e) -> ofNullable(e).map(t -> ofNullable(t.getCause()).orElse(t)))
+          .join();
+    }
+  }
+}
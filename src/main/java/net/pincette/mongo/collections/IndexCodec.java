@@ -0,0 +1,174 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Optional.ofNullable;
+import static net.pincette.mongo.collections.BsonValues.readNumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonInt32;
+import org.bson.BsonReader;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Converts between an index as <code>listIndexes</code> reports it and the specification. The keys
+ * are in the field <code>key</code> and all other fields are options. This avoids the detour
+ * through JSON for every index on every resync. MongoDB reports the fields of a text index as the
+ * keys <code>_fts</code> and <code>_ftsx</code>, with the fields in the weights. They are turned
+ * back into text keys. A key type the operator doesn't know makes the decoding fail with an <code>
+ * IllegalArgumentException</code>.
+ */
+class IndexCodec implements Codec<Index> {
+  private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+  private static final IndexCodec INSTANCE = new IndexCodec();
+  private static final String FTS = "_fts";
+  private static final String FTSX = "_ftsx";
+  private static final String KEY = "key";
+
+  private final IndexOptionsCodec optionsCodec = new IndexOptionsCodec();
+
+  /** Decodes an index. A raw document is read directly from its bytes. */
+  static Index decode(final BsonDocument index) {
+    try (BsonReader reader =
+        index instanceof RawBsonDocument raw ? raw.asBsonReader() : new BsonDocumentReader(index)) {
+      return INSTANCE.decode(reader, DECODER_CONTEXT);
+    }
+  }
+
+  private static int direction(final String field, final String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          "The index key type " + value + " of " + field + " isn't supported", e);
+    }
+  }
+
+  private static Key key(final String field, final KeyType type) {
+    final Key key = new Key();
+
+    key.field = field;
+    key.type = type;
+
+    return key;
+  }
+
+  /** Returns the key pattern as MongoDB expects it. */
+  static BsonDocument keyPattern(final List<Key> keys) {
+    final BsonDocument pattern = new BsonDocument();
+
+    keys.forEach(
+        k ->
+            pattern.append(
+                k.field,
+                k.type != null ? new BsonString(k.type.value) : new BsonInt32(k.direction)));
+
+    return pattern;
+  }
+
+  /** Decodes a key pattern as MongoDB reports it. */
+  static List<Key> keys(final BsonDocument pattern) {
+    return decode(new BsonDocument(KEY, pattern)).keys;
+  }
+
+  private static void readDirection(final BsonReader reader, final Key key) {
+    if (reader.getCurrentBsonType() == BsonType.STRING) {
+      final String value = reader.readString();
+
+      KeyType.fromValue(value)
+          .ifPresentOrElse(t -> key.type = t, () -> key.direction = direction(key.field, value));
+    } else {
+      key.direction = readNumber(reader).intValue();
+    }
+  }
+
+  private static List<Key> readKeys(final BsonReader reader) {
+    final List<Key> keys = new ArrayList<>();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      final Key key = new Key();
+
+      key.field = reader.readName();
+      readDirection(reader, key);
+      keys.add(key);
+    }
+
+    reader.readEndDocument();
+
+    return keys;
+  }
+
+  private static List<Key> textKeys(final List<Key> keys, final Map<String, Integer> weights) {
+    return keys.stream()
+        .filter(k -> !FTSX.equals(k.field))
+        .flatMap(
+            k ->
+                FTS.equals(k.field)
+                    ? ofNullable(weights).orElseGet(Map::of).keySet().stream()
+                        .map(f -> key(f, KeyType.text))
+                    : Stream.of(k))
+        .toList();
+  }
+
+  private static void writeKey(final BsonWriter writer, final Key key) {
+    if (key.type != null) {
+      writer.writeString(key.field, key.type.value);
+    } else {
+      writer.writeInt32(key.field, key.direction);
+    }
+  }
+
+  @Override
+  public Index decode(final BsonReader reader, final DecoderContext decoderContext) {
+    final Index index = new Index();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      final String name = reader.readName();
+
+      if (KEY.equals(name)) {
+        index.keys = readKeys(reader);
+      } else {
+        optionsCodec.decodeField(name, reader, index.options, decoderContext);
+      }
+    }
+
+    reader.readEndDocument();
+
+    if (index.keys != null) {
+      index.keys = textKeys(index.keys, index.options.weights);
+    }
+
+    return index;
+  }
+
+  @Override
+  public void encode(
+      final BsonWriter writer, final Index index, final EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    writer.writeStartDocument(KEY);
+    index.keys.forEach(k -> writeKey(writer, k));
+    writer.writeEndDocument();
+    optionsCodec.encodeFields(writer, index.options, encoderContext);
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<Index> getEncoderClass() {
+    return Index.class;
+  }
+}
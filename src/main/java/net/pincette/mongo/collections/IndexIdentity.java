@@ -0,0 +1,120 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Comparator.comparing;
+import static java.util.Objects.hash;
+import static java.util.Optional.ofNullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+
+/**
+ * What MongoDB uses to tell indexes apart: the key pattern, the collation and the partial filter.
+ * Two indexes with the same identity can't exist together. The partial filter is compared in its
+ * canonical form, so the number types that come from BSON or from the resource don't matter. The
+ * hash code is computed once. The order of the fields of a text index doesn't matter either.
+ */
+class IndexIdentity {
+  private final Collation collation;
+  private final Object filter;
+  private final int hash;
+  private final List<Key> keys;
+
+  IndexIdentity(final Index index) {
+    this.keys = canonicalKeys(index.keys);
+    this.collation = ofNullable(index.options).map(o -> o.collation).orElse(null);
+    this.filter =
+        ofNullable(index.options).map(o -> canonical(o.partialFilterExpression)).orElse(null);
+    this.hash = hash(keys, collation, filter);
+  }
+
+  /**
+   * Returns a form of the value in which numbers are compared by their value and the fields of
+   * objects are in alphabetical order.
+   */
+  static Object canonical(final Object value) {
+    if (value instanceof Map<?, ?> map) {
+      final Map<String, Object> result = new TreeMap<>();
+
+      map.forEach((k, v) -> result.put(k.toString(), canonical(v)));
+
+      return result;
+    }
+
+    if (value instanceof List<?> list) {
+      return list.stream().map(IndexIdentity::canonical).toList();
+    }
+
+    return value instanceof Number n ? number(n) : value;
+  }
+
+  /** Returns the keys with the text fields in alphabetical order, where the first one was. */
+  static List<Key> canonicalKeys(final List<Key> keys) {
+    final List<Key> text =
+        keys.stream().filter(k -> k.type == KeyType.text).sorted(comparing(k -> k.field)).toList();
+
+    if (text.size() < 2) {
+      return keys;
+    }
+
+    final List<Key> result = new ArrayList<>();
+
+    keys.forEach(
+        k -> {
+          if (k.type != KeyType.text) {
+            result.add(k);
+          } else if (result.stream().noneMatch(r -> r.type == KeyType.text)) {
+            result.addAll(text);
+          }
+        });
+
+    return result;
+  }
+
+  private static Object number(final Number number) {
+    if (number instanceof Double d && (d.isNaN() || d.isInfinite())) {
+      return d;
+    }
+
+    final BigDecimal decimal;
+
+    if (number instanceof BigDecimal b) {
+      decimal = b;
+    } else if (number instanceof BigInteger i) {
+      decimal = new BigDecimal(i);
+    } else if (number instanceof Double || number instanceof Float) {
+      decimal = BigDecimal.valueOf(number.doubleValue());
+    } else {
+      decimal = BigDecimal.valueOf(number.longValue());
+    }
+
+    return decimal.stripTrailingZeros();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    return ofNullable(obj)
+        .filter(IndexIdentity.class::isInstance)
+        .map(IndexIdentity.class::cast)
+        .filter(
+            i ->
+                this == i
+                    || (hash == i.hash
+                        && keys.equals(i.keys)
+                        && Objects.equals(collation, i.collation)
+                        && Objects.equals(filter, i.filter)))
+        .isPresent();
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
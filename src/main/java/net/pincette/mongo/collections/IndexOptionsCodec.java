@@ -0,0 +1,199 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.BsonValues.readBoolean;
+import static net.pincette.mongo.collections.BsonValues.readMap;
+import static net.pincette.mongo.collections.BsonValues.readNumber;
+import static net.pincette.mongo.collections.BsonValues.toBson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Options;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Converts between index options and the specification. MongoDB reports the options at the same
+ * level as the keys, so the fields can also be read and written one by one.
+ */
+class IndexOptionsCodec implements Codec<Options> {
+  private static final String BITS = "bits";
+  private static final String COLLATION = "collation";
+  private static final String DEFAULT_LANGUAGE = "default_language";
+  private static final String DEFAULT_LANGUAGE_OPTION = "defaultLanguage";
+  private static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
+  private static final String HIDDEN = "hidden";
+  private static final String LANGUAGE_OVERRIDE = "language_override";
+  private static final String LANGUAGE_OVERRIDE_OPTION = "languageOverride";
+  private static final String MAX = "max";
+  private static final String MIN = "min";
+  private static final String NAME = "name";
+  private static final String PARTIAL_FILTER_EXPRESSION = "partialFilterExpression";
+  private static final String SPARSE = "sparse";
+  private static final String SPHERE_INDEX_VERSION = "2dsphereIndexVersion";
+  private static final String SPHERE_INDEX_VERSION_OPTION = "sphereIndexVersion";
+  private static final String TEXT_INDEX_VERSION = "textIndexVersion";
+  private static final String UNIQUE = "unique";
+  private static final String WEIGHTS = "weights";
+  private static final String WILDCARD_PROJECTION = "wildcardProjection";
+
+  private final CollationCodec collationCodec = new CollationCodec();
+  private final BsonDocumentCodec documentCodec = new BsonDocumentCodec();
+
+  private static Map<String, Integer> readIntegers(final BsonReader reader) {
+    final Map<String, Integer> map = new LinkedHashMap<>();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      map.put(reader.readName(), readNumber(reader).intValue());
+    }
+
+    reader.readEndDocument();
+
+    return map;
+  }
+
+  @Override
+  public Options decode(final BsonReader reader, final DecoderContext decoderContext) {
+    final Options options = new Options();
+
+    reader.readStartDocument();
+
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      decodeField(reader.readName(), reader, options, decoderContext);
+    }
+
+    reader.readEndDocument();
+
+    return options;
+  }
+
+  /** Reads the value of the field with <code>name</code>. Unknown fields are skipped. */
+  void decodeField(
+      final String name,
+      final BsonReader reader,
+      final Options options,
+      final DecoderContext decoderContext) {
+    if (reader.getCurrentBsonType() == BsonType.NULL) {
+      reader.readNull();
+      return;
+    }
+
+    switch (name) {
+      case BITS -> options.bits = readNumber(reader).intValue();
+      case COLLATION -> options.collation = collationCodec.decode(reader, decoderContext);
+      case DEFAULT_LANGUAGE, DEFAULT_LANGUAGE_OPTION ->
+          options.defaultLanguage = reader.readString();
+      case EXPIRE_AFTER_SECONDS -> options.expireAfterSeconds = readNumber(reader).longValue();
+      case HIDDEN -> options.hidden = readBoolean(reader);
+      case LANGUAGE_OVERRIDE, LANGUAGE_OVERRIDE_OPTION ->
+          options.languageOverride = reader.readString();
+      case MAX -> options.max = readNumber(reader).doubleValue();
+      case MIN -> options.min = readNumber(reader).doubleValue();
+      case NAME -> options.name = reader.readString();
+      case PARTIAL_FILTER_EXPRESSION -> options.partialFilterExpression = readMap(reader);
+      case SPARSE -> options.sparse = readBoolean(reader);
+      case SPHERE_INDEX_VERSION, SPHERE_INDEX_VERSION_OPTION ->
+          options.sphereIndexVersion = readNumber(reader).intValue();
+      case TEXT_INDEX_VERSION -> options.textIndexVersion = readNumber(reader).intValue();
+      case UNIQUE -> options.unique = readBoolean(reader);
+      case WEIGHTS -> options.weights = readIntegers(reader);
+      case WILDCARD_PROJECTION -> options.wildcardProjection = readIntegers(reader);
+      default -> reader.skipValue();
+    }
+  }
+
+  @Override
+  public void encode(
+      final BsonWriter writer, final Options options, final EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    encodeFields(writer, options, encoderContext);
+    writer.writeEndDocument();
+  }
+
+  /** Writes the fields that don't have their default value. */
+  void encodeFields(
+      final BsonWriter writer, final Options options, final EncoderContext encoderContext) {
+    if (options.name != null) {
+      writer.writeString(NAME, options.name);
+    }
+
+    if (options.bits != -1) {
+      writer.writeInt32(BITS, options.bits);
+    }
+
+    if (options.collation != null) {
+      writer.writeName(COLLATION);
+      collationCodec.encode(writer, options.collation, encoderContext);
+    }
+
+    if (options.defaultLanguage != null) {
+      writer.writeString(DEFAULT_LANGUAGE, options.defaultLanguage);
+    }
+
+    if (options.expireAfterSeconds != -1) {
+      writer.writeInt64(EXPIRE_AFTER_SECONDS, options.expireAfterSeconds);
+    }
+
+    if (options.hidden) {
+      writer.writeBoolean(HIDDEN, true);
+    }
+
+    if (options.languageOverride != null) {
+      writer.writeString(LANGUAGE_OVERRIDE, options.languageOverride);
+    }
+
+    if (options.max != null) {
+      writer.writeDouble(MAX, options.max);
+    }
+
+    if (options.min != null) {
+      writer.writeDouble(MIN, options.min);
+    }
+
+    writeMap(writer, PARTIAL_FILTER_EXPRESSION, options.partialFilterExpression, encoderContext);
+
+    if (options.sparse) {
+      writer.writeBoolean(SPARSE, true);
+    }
+
+    if (options.sphereIndexVersion != -1) {
+      writer.writeInt32(SPHERE_INDEX_VERSION, options.sphereIndexVersion);
+    }
+
+    if (options.textIndexVersion != -1) {
+      writer.writeInt32(TEXT_INDEX_VERSION, options.textIndexVersion);
+    }
+
+    if (options.unique) {
+      writer.writeBoolean(UNIQUE, true);
+    }
+
+    writeMap(writer, WEIGHTS, options.weights, encoderContext);
+    writeMap(writer, WILDCARD_PROJECTION, options.wildcardProjection, encoderContext);
+  }
+
+  @Override
+  public Class<Options> getEncoderClass() {
+    return Options.class;
+  }
+
+  private void writeMap(
+      final BsonWriter writer,
+      final String name,
+      final Map<String, ?> map,
+      final EncoderContext encoderContext) {
+    if (map != null) {
+      final BsonDocument document = toBson(map);
+
+      writer.writeName(name);
+      documentCodec.encode(writer, document, encoderContext);
+    }
+  }
+}
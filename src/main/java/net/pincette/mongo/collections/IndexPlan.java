@@ -0,0 +1,94 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Optional.ofNullable;
+import static net.pincette.util.Pair.pair;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Options;
+import net.pincette.util.Pair;
+
+/**
+ * The operations that bring the found indexes to the desired ones. Indexes are matched on their
+ * identity with one pass over each list. A matched index is kept when its options are also the
+ * same. Otherwise, it is modified in place with <code>collMod</code> when only <code>hidden</code>,
+ * <code>
+ * expireAfterSeconds</code> or <code>unique</code> differ, and rebuilt when anything else differs.
+ * The pairs in <code>modify</code> and <code>rebuild</code> have the found index first and the
+ * desired one second.
+ */
+class IndexPlan {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  final List<Index> create = new ArrayList<>();
+  final List<Index> drop = new ArrayList<>();
+  final List<Index> keep = new ArrayList<>();
+  final List<Pair<Index, Index>> modify = new ArrayList<>();
+  final List<Pair<Index, Index>> rebuild = new ArrayList<>();
+
+  IndexPlan(final List<Index> found, final List<Index> desired) {
+    final Map<IndexIdentity, Index> existing = new LinkedHashMap<>();
+
+    found.forEach(
+        i -> {
+          if (existing.putIfAbsent(new IndexIdentity(i), i) != null) {
+            drop.add(i);
+          }
+        });
+
+    desired.forEach(
+        i ->
+            ofNullable(existing.remove(new IndexIdentity(i)))
+                .ifPresentOrElse(
+                    f -> {
+                      if (f.equals(i)) {
+                        keep.add(f);
+                      } else if (inPlace(f, i)) {
+                        modify.add(pair(f, i));
+                      } else {
+                        rebuild.add(pair(f, i));
+                      }
+                    },
+                    () -> create.add(i)));
+
+    drop.addAll(existing.values());
+  }
+
+  /**
+   * A TTL can be changed or added to a single field index, but not removed. An index can be made
+   * unique, but not the other way around.
+   */
+  private static boolean inPlace(final Index found, final Index desired) {
+    final Options options = MAPPER.convertValue(found.options, Options.class);
+
+    options.expireAfterSeconds = desired.options.expireAfterSeconds;
+    options.hidden = desired.options.hidden;
+    options.unique = desired.options.unique;
+
+    return options.equals(desired.options)
+        && (desired.options.expireAfterSeconds != -1 || found.options.expireAfterSeconds == -1)
+        && (found.options.expireAfterSeconds != -1
+            || desired.options.expireAfterSeconds == -1
+            || found.keys.size() == 1)
+        && (desired.options.unique || !found.options.unique);
+  }
+
+  /**
+   * Holds back the builds together with all drops. An index that is created can replace one that is
+   * dropped, because its identity changed. So nothing is dropped while a build waits. The
+   * modifications in place still go ahead.
+   */
+  void deferBuilds() {
+    create.clear();
+    drop.clear();
+    rebuild.clear();
+  }
+
+  boolean isEmpty() {
+    return create.isEmpty() && drop.isEmpty() && modify.isEmpty() && rebuild.isEmpty();
+  }
+}
@@ -0,0 +1,7 @@
+package net.pincette.mongo.collections;
+
+@SuppressWarnings("java:S115") // This goes in the OpenAPI spec.
+public enum IndexReplacement {
+  dropFirst,
+  swap
+}
@@ -0,0 +1,189 @@
+package net.pincette.mongo.collections;
+
+import static com.mongodb.connection.ClusterConnectionMode.SINGLE;
+import static java.time.Instant.now;
+import static java.util.Comparator.comparing;
+import static java.util.Optional.ofNullable;
+import static java.util.function.Function.identity;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.StreamUtil.stream;
+import static net.pincette.util.Util.tryToGet;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionStatus.IndexUsage;
+import net.pincette.mongo.collections.MongoCollectionStatus.MemberUsage;
+import org.bson.Document;
+
+/**
+ * Collects <code>$indexStats</code> from every member of the replica set. The counters of MongoDB
+ * start over when a member restarts, so the status keeps the last counter per member and adds up
+ * the differences. An index is considered used when one of its counters went up. When the operator
+ * isn't connected to a replica set, the statistics are collected through the normal client.
+ */
+class IndexStats {
+  private static final String ACCESSES = "accesses";
+  private static final String ADMIN = "admin";
+  private static final String HELLO = "hello";
+  private static final String HOST = "host";
+  private static final String HOSTS = "hosts";
+  private static final String INDEX_STATS = "$indexStats";
+  private static final String NAME = "name";
+  private static final String OPS = "ops";
+  private static final String PASSIVES = "passives";
+  private static final String SET_NAME = "setName";
+  private static final String SINCE = "since";
+
+  private final MongoClient client;
+  private final ConnectionString connectionString;
+  private final String database;
+  private final Limits limits;
+  private final Map<String, MongoClient> members = new ConcurrentHashMap<>();
+
+  IndexStats(
+      final MongoClient client,
+      final ConnectionString connectionString,
+      final String database,
+      final Limits limits) {
+    this.client = client;
+    this.connectionString = connectionString;
+    this.database = database;
+    this.limits = limits;
+  }
+
+  private static void fold(
+      final Document stat, final Map<String, IndexUsage> usage, final Instant now) {
+    final String name = stat.getString(NAME);
+    final String host = stat.getString(HOST);
+    final Document accesses = stat.get(ACCESSES, new Document());
+    final long ops = ofNullable(accesses.get(OPS, Number.class)).map(Number::longValue).orElse(0L);
+    final String since =
+        ofNullable(accesses.getDate(SINCE))
+            .map(Date::toInstant)
+            .map(Instant::toString)
+            .orElse(null);
+    final IndexUsage index = usage.computeIfAbsent(name, n -> new IndexUsage(n, now));
+    final MemberUsage previous = index.members.get(host);
+    final long delta =
+        previous != null && previous.since != null && previous.since.equals(since)
+            ? Math.max(0, ops - previous.ops)
+            : ops;
+
+    if (delta > 0) {
+      index.ops += delta;
+      index.lastUsed = now.toString();
+    }
+
+    index.members.put(host, new MemberUsage(ops, since));
+  }
+
+  private MongoClient member(final String host) {
+    return members.computeIfAbsent(
+        host,
+        h ->
+            MongoClients.create(
+                MongoClientSettings.builder()
+                    .applyConnectionString(connectionString)
+                    .applyToClusterSettings(b -> b.hosts(list(new ServerAddress(h))).mode(SINGLE))
+                    .build()));
+  }
+
+  /** Returns a client per replica set member, or the normal client when there is no replica set. */
+  private List<MongoClient> memberClients() {
+    final Document hello =
+        limits.read(() -> client.getDatabase(ADMIN).runCommand(new Document(HELLO, 1)));
+
+    if (!hello.containsKey(SET_NAME)) {
+      return list(client);
+    }
+
+    final Set<String> hosts =
+        Stream.of(HOSTS, PASSIVES)
+            .flatMap(f -> hello.getList(f, String.class, list()).stream())
+            .collect(toSet());
+
+    members.keySet().stream()
+        .filter(h -> !hosts.contains(h))
+        .toList()
+        .forEach(h -> ofNullable(members.remove(h)).ifPresent(MongoClient::close));
+
+    return hosts.stream().map(this::member).toList();
+  }
+
+  private List<Document> stats(final MongoClient member, final String collection) {
+    final MongoDatabase db = member.getDatabase(database);
+
+    return limits.read(
+        () ->
+            stream(
+                    db.getCollection(collection)
+                        .aggregate(list(new Document(INDEX_STATS, new Document())))
+                        .iterator())
+                .toList());
+  }
+
+  /**
+   * Collects the statistics of the collection and adds them to the usage in the status. Members
+   * that can't be reached are skipped. Returns <code>false</code> when nothing could be collected.
+   * The attempt is recorded in the status either way, so a failure waits for the next interval.
+   */
+  boolean update(final String collection, final MongoCollectionStatus status) {
+    final Instant now = now();
+    final List<List<Document>> collected =
+        tryToGet(
+                this::memberClients,
+                e -> {
+                  LOGGER.log(WARNING, e, () -> "Can't find the members: " + e.getMessage());
+                  return null;
+                })
+            .orElseGet(List::of)
+            .stream()
+            .map(
+                c ->
+                    tryToGet(
+                        () -> stats(c, collection),
+                        e -> {
+                          LOGGER.log(FINE, e, e::getMessage);
+                          return null;
+                        }))
+            .flatMap(Optional::stream)
+            .toList();
+
+    status.indexUsageCollected = now.toString();
+
+    if (collected.isEmpty()) {
+      return false;
+    }
+
+    final List<Document> stats = collected.stream().flatMap(List::stream).toList();
+    final Map<String, IndexUsage> usage =
+        status.indexUsage.stream().collect(toMap(u -> u.name, identity()));
+    final Set<String> names = stats.stream().map(s -> s.getString(NAME)).collect(toSet());
+
+    stats.forEach(s -> fold(s, usage, now));
+    status.indexUsage =
+        usage.values().stream()
+            .filter(u -> names.contains(u.name))
+            .sorted(comparing(u -> u.name))
+            .toList();
+
+    return true;
+  }
+}
@@ -0,0 +1,31 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Arrays.stream;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Optional;
+
+/** The kinds of index keys other than ascending and descending ones. */
+@SuppressWarnings("java:S115") // This goes in the OpenAPI spec.
+public enum KeyType {
+  @JsonProperty("2d")
+  geo2d("2d"),
+
+  @JsonProperty("2dsphere")
+  geo2dsphere("2dsphere"),
+
+  hashed("hashed"),
+
+  text("text");
+
+  /** The value of the key in the key pattern of MongoDB. */
+  final String value;
+
+  KeyType(final String value) {
+    this.value = value;
+  }
+
+  static Optional<KeyType> fromValue(final String value) {
+    return stream(values()).filter(t -> t.value.equals(value)).findFirst();
+  }
+}
@@ -0,0 +1,140 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.pincette.util.Util.tryToDoSilent;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of concurrent commands the operator sends to a database. Catalog reads are
+ * cheap and get a generous limit. DDL commands are expensive and get a tight one. Index builds
+ * don't count against it, because they can run for hours. They have their own limit. A caller that
+ * doesn't get a permit waits for it. Both kinds can also have a rate, which is enforced with a
+ * token bucket that holds one second of commands. A caller that finds the bucket empty is delayed
+ * before it asks for a permit, so it doesn't hold one while it waits.
+ */
+class Limits {
+  private static final String CATALOG_READ = "catalogRead";
+  private static final String DDL = "ddl";
+  private static final String KIND = "kind";
+  private static final String METRIC_THROTTLED = "mongo.collections.commands.throttled";
+  private static final String METRIC_WAITING = "mongo.collections.commands.waiting";
+
+  private final Semaphore ddl;
+  private final TokenBucket ddlRate;
+  private final Timer ddlThrottled;
+  private final Semaphore reads;
+  private final TokenBucket readsRate;
+  private final Timer readsThrottled;
+
+  /** A rate of zero or less means there is no rate limit for that kind of command. */
+  Limits(
+      final int reads,
+      final int ddl,
+      final double readsPerSecond,
+      final double ddlPerSecond,
+      final MeterRegistry registry) {
+    this.reads = new Semaphore(reads, true);
+    this.ddl = new Semaphore(ddl, true);
+    this.readsRate = readsPerSecond > 0 ? new TokenBucket(readsPerSecond) : null;
+    this.ddlRate = ddlPerSecond > 0 ? new TokenBucket(ddlPerSecond) : null;
+    this.readsThrottled = throttled(CATALOG_READ, registry);
+    this.ddlThrottled = throttled(DDL, registry);
+    Gauge.builder(METRIC_WAITING, this.reads, Semaphore::getQueueLength)
+        .tag(KIND, CATALOG_READ)
+        .register(registry);
+    Gauge.builder(METRIC_WAITING, this.ddl, Semaphore::getQueueLength)
+        .tag(KIND, DDL)
+        .register(registry);
+  }
+
+  private static void throttle(final TokenBucket bucket, final Timer throttled) {
+    if (bucket != null) {
+      final long wait = bucket.take();
+
+      if (wait > 0) {
+        throttled.record(wait, NANOSECONDS);
+        tryToDoSilent(() -> NANOSECONDS.sleep(wait));
+      }
+    }
+  }
+
+  private static Timer throttled(final String kind, final MeterRegistry registry) {
+    return Timer.builder(METRIC_THROTTLED)
+        .description("The delays of commands that exceeded their rate")
+        .tag(KIND, kind)
+        .register(registry);
+  }
+
+  private static <T> T withPermit(final Semaphore semaphore, final Supplier<T> command) {
+    semaphore.acquireUninterruptibly();
+
+    try {
+      return command.get();
+    } finally {
+      semaphore.release();
+    }
+  }
+
+  <T> T ddl(final Supplier<T> command) {
+    throttle(ddlRate, ddlThrottled);
+
+    return withPermit(ddl, command);
+  }
+
+  void ddl(final Runnable command) {
+    ddl(
+        () -> {
+          command.run();
+          return null;
+        });
+  }
+
+  /** Applies the rate of DDL commands, but doesn't take a permit. */
+  <T> T indexBuild(final Supplier<T> command) {
+    throttle(ddlRate, ddlThrottled);
+
+    return command.get();
+  }
+
+  <T> T read(final Supplier<T> command) {
+    throttle(readsRate, readsThrottled);
+
+    return withPermit(reads, command);
+  }
+
+  /**
+   * The tokens can go below zero. A negative balance is the debt of the callers that are already
+   * waiting, so callers are served in the order they arrive.
+   */
+  private static class TokenBucket {
+    private final double capacity;
+    private final double nanosPerToken;
+    private double tokens;
+    private long updated = nanoTime();
+
+    private TokenBucket(final double perSecond) {
+      capacity = max(perSecond, 1);
+      nanosPerToken = SECONDS.toNanos(1) / perSecond;
+      tokens = capacity;
+    }
+
+    /** Takes a token and returns the number of nanoseconds the caller should wait for it. */
+    private synchronized long take() {
+      final long now = nanoTime();
+
+      tokens = min(capacity, tokens + (now - updated) / nanosPerToken) - 1;
+      updated = now;
+
+      return tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+    }
+  }
+}
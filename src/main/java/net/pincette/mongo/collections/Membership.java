@@ -0,0 +1,259 @@
+package net.pincette.mongo.collections;
+
+import static java.time.ZoneOffset.UTC;
+import static java.time.ZonedDateTime.now;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toCollection;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Util.tryToDo;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.IntStream;
+
+/**
+ * Splits the resources over the replicas of the operator. Each replica holds a <code>Lease</code>
+ * in the namespace of the operator, which it renews at a third of the lease duration. The replicas
+ * with a lease that hasn't expired are the members. They are placed on a consistent hash ring with
+ * a number of virtual nodes each, and a resource belongs to the member that follows the hash of its
+ * namespace and name on the ring. When a member joins or leaves, only the resources in its part of
+ * the ring move. A replica deletes its lease when it stops, so the others take over without waiting
+ * for the lease to expire.
+ *
+ * <p>A replica only takes a resource it has gained after a full lease duration, because the
+ * previous owner may not have seen the change yet. The latter gives up the resource as soon as it
+ * renews its lease. A replica that hasn't been able to renew its lease for a lease duration stops
+ * reconciling altogether, because the others will take over its resources. The leases that have
+ * expired for more than a lease duration are deleted.
+ */
+class Membership {
+  private static final String COMPONENT = "app.kubernetes.io/component";
+  private static final String MEMBER = "mongo-collections-member";
+  private static final String NAME = "app.kubernetes.io/name";
+  private static final String OPERATOR = "mongo-collections-controller";
+  private static final int VIRTUAL_NODES = 100;
+
+  private final KubernetesClient client;
+  private final Duration leaseDuration;
+  private final String member;
+  private final String namespace;
+  private final Runnable onChange;
+  private final ScheduledExecutorService scheduler = newSingleThreadScheduledExecutor();
+  private final List<View> views = new ArrayList<>();
+  private Set<String> members = new TreeSet<>();
+  private ZonedDateTime renewed;
+
+  /**
+   * The function <code>onChange</code> is called when the members have changed, so the replica can
+   * pick up the resources it has gained.
+   */
+  Membership(
+      final KubernetesClient client,
+      final String namespace,
+      final String member,
+      final Duration leaseDuration,
+      final Runnable onChange) {
+    this.client = client;
+    this.namespace = namespace;
+    this.member = member;
+    this.leaseDuration = leaseDuration;
+    this.onChange = onChange;
+  }
+
+  private static long hash(final String value) {
+    return ByteBuffer.wrap(
+            tryToGetRethrow(() -> MessageDigest.getInstance("MD5"))
+                .orElseThrow()
+                .digest(value.getBytes(StandardCharsets.UTF_8)))
+        .getLong();
+  }
+
+  private static String owner(final NavigableMap<Long, String> ring, final String key) {
+    return ofNullable(ring.ceilingEntry(hash(key)))
+        .or(() -> ofNullable(ring.firstEntry()))
+        .map(Map.Entry::getValue)
+        .orElse(null);
+  }
+
+  private static NavigableMap<Long, String> ring(final Set<String> members) {
+    final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    members.forEach(
+        m -> IntStream.range(0, VIRTUAL_NODES).forEach(i -> ring.put(hash(m + "#" + i), m)));
+
+    return ring;
+  }
+
+  private static boolean valid(final Lease lease, final ZonedDateTime now) {
+    return validUntil(lease).map(u -> u.isAfter(now)).orElse(false);
+  }
+
+  private static Optional<ZonedDateTime> validUntil(final Lease lease) {
+    return ofNullable(lease.getSpec().getRenewTime())
+        .map(
+            r ->
+                r.plusSeconds(
+                    ofNullable(lease.getSpec().getLeaseDurationSeconds()).orElse(0).longValue()));
+  }
+
+  /** Indicates whether the member has a lease that hasn't expired. */
+  synchronized boolean alive(final String member) {
+    return members.contains(member);
+  }
+
+  private boolean fenced(final ZonedDateTime now) {
+    return renewed == null || !renewed.plus(leaseDuration).isAfter(now);
+  }
+
+  private Lease lease() {
+    return new LeaseBuilder()
+        .withNewMetadata()
+        .withName(member)
+        .withNamespace(namespace)
+        .addToLabels(COMPONENT, MEMBER)
+        .addToLabels(NAME, OPERATOR)
+        .endMetadata()
+        .withNewSpec()
+        .withHolderIdentity(member)
+        .withLeaseDurationSeconds((int) leaseDuration.toSeconds())
+        .withRenewTime(now(UTC))
+        .endSpec()
+        .build();
+  }
+
+  String member() {
+    return member;
+  }
+
+  /**
+   * Indicates whether the key belongs to this replica and has done so for at least a lease
+   * duration.
+   */
+  synchronized boolean owns(final String key) {
+    final ZonedDateTime now = now(UTC);
+
+    if (fenced(now)) {
+      return false;
+    }
+
+    final ZonedDateTime settled = now.minus(leaseDuration);
+
+    while (views.size() > 1 && !views.get(1).since.isAfter(settled)) {
+      views.remove(0);
+    }
+
+    return !views.isEmpty()
+        && !views.get(0).since.isAfter(settled)
+        && views.stream().allMatch(v -> member.equals(owner(v.ring, key)));
+  }
+
+  private void removeExpired(final List<Lease> leases, final ZonedDateTime now) {
+    leases.stream()
+        .filter(l -> validUntil(l).map(u -> u.plus(leaseDuration).isBefore(now)).orElse(true))
+        .forEach(
+            l ->
+                tryToDo(
+                    () ->
+                        client
+                            .leases()
+                            .inNamespace(namespace)
+                            .withName(l.getMetadata().getName())
+                            .delete()));
+  }
+
+  private void renew() {
+    final ZonedDateTime renewal = now(UTC);
+
+    client.leases().inNamespace(namespace).resource(lease()).forceConflicts().serverSideApply();
+
+    final ZonedDateTime now = now(UTC);
+    final List<Lease> leases =
+        client.leases().inNamespace(namespace).withLabel(COMPONENT, MEMBER).list().getItems();
+    final Set<String> current =
+        leases.stream()
+            .filter(l -> valid(l, now))
+            .map(l -> l.getSpec().getHolderIdentity())
+            .collect(toCollection(TreeSet::new));
+
+    // A replica always counts itself, also when its own lease couldn't be read back.
+    current.add(member);
+    update(current, renewal);
+    removeExpired(leases, now);
+  }
+
+  /** Renews the lease of this replica right away and then periodically. */
+  void start() {
+    tryRenew();
+    scheduler.scheduleWithFixedDelay(
+        this::tryRenew, leaseDuration.toMillis() / 3, leaseDuration.toMillis() / 3, MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+  }
+
+  private void stop() {
+    scheduler.shutdownNow();
+    tryToDo(() -> client.leases().inNamespace(namespace).withName(member).delete());
+  }
+
+  /** When the lease can't be renewed the current members are kept until it succeeds again. */
+  private void tryRenew() {
+    tryToDo(this::renew, e -> LOGGER.log(WARNING, e, () -> "Can't renew lease: " + e.getMessage()));
+  }
+
+  /**
+   * A replica that comes back after having been fenced starts over, because the others may have
+   * taken its resources in the meantime. The resources are triggered again when the gained ones can
+   * be taken.
+   */
+  private void update(final Set<String> current, final ZonedDateTime renewal) {
+    final boolean changed;
+
+    synchronized (this) {
+      if (fenced(renewal)) {
+        views.clear();
+      }
+
+      changed = views.isEmpty() || !current.equals(members);
+      renewed = renewal;
+
+      if (changed) {
+        members = current;
+        views.add(new View(renewal, ring(current)));
+      }
+    }
+
+    if (changed) {
+      LOGGER.info(() -> "The operator replicas are " + current);
+      onChange.run();
+      scheduler.schedule(onChange, leaseDuration.toMillis(), MILLISECONDS);
+    }
+  }
+
+  private static class View {
+    private final NavigableMap<Long, String> ring;
+    private final ZonedDateTime since;
+
+    private View(final ZonedDateTime since, final NavigableMap<Long, String> ring) {
+      this.since = since;
+      this.ring = ring;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package net.pincette.mongo.collections;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/** Exposes the metrics in the Prometheus text format on the path <code>/metrics</code>. */
+class MetricsServer {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String PATH = "/metrics";
+
+  private MetricsServer() {}
+
+  private static void scrape(final PrometheusMeterRegistry registry, final HttpExchange exchange)
+      throws IOException {
+    final byte[] body = registry.scrape().getBytes(UTF_8);
+
+    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+    exchange.sendResponseHeaders(200, body.length);
+
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  static void start(final PrometheusMeterRegistry registry, final int port) {
+    final HttpServer server =
+        tryToGetRethrow(() -> HttpServer.create(new InetSocketAddress(port), 0)).orElseThrow();
+
+    server.createContext(PATH, exchange -> scrape(registry, exchange));
+    server.start();
+    LOGGER.info(() -> "Metrics are available on port " + port + " at " + PATH);
+  }
+}
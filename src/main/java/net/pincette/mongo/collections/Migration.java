@@ -0,0 +1,702 @@
+package net.pincette.mongo.collections;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.changestream.FullDocument.DEFAULT;
+import static com.mongodb.client.model.changestream.FullDocument.UPDATE_LOOKUP;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.time.Instant.now;
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.stream.IntStream.range;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.StreamUtil.stream;
+import static net.pincette.util.Util.tryToDo;
+import static net.pincette.util.Util.tryToDoSilent;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+/**
+ * Moves the documents of a collection to a new collection with options that can't be changed on an
+ * existing one. The documents are copied in parallel ranges of <code>_id</code> values. The changes
+ * that happen during the copy are read from a change stream and applied afterwards. The new
+ * collection then replaces the old one with <code>renameCollection</code>.
+ *
+ * <p>Before the cutover, inserts and updates of the old collection are blocked with a validator
+ * that rejects everything. The change stream is then followed until it has reached the moment of
+ * the block, which is read from the resume tokens. When it doesn't get there within the timeout,
+ * the block is lifted and the migration fails, leaving the old collection as it was. A time series
+ * collection can't have a validator, so it isn't blocked. When the operator is restarted during the
+ * cutover, the next attempt lifts the block it finds.
+ *
+ * <p>Deletes aren't blocked. The change stream is opened on the database, so it continues after the
+ * rename. Its events up to the rename are those of the old collection. The ones after it are writes
+ * of clients to the new collection. The drain applies the late changes to the old collection,
+ * except for the documents that clients have written after the cutover. Updates are applied with
+ * the fields they changed, because the old collection, in which the full document would be looked
+ * up, is gone. When the drain doesn't reach the rename within the timeout, the migration fails.
+ */
+class Migration {
+  private static final String AND = "$and";
+  private static final String COLL_MOD = "collMod";
+  private static final Duration CUT_OVER_TIMEOUT = Duration.ofMinutes(1);
+  private static final String DATA = "_data";
+  private static final String ERROR = "error";
+  private static final String EXPR = "$expr";
+  private static final Document FENCE = new Document(EXPR, false);
+  private static final String ID = "_id";
+  private static final Document ID_INDEX = new Document(ID, 1);
+  private static final String NS_COLL = "ns.coll";
+  private static final String OPERATION_TIME = "operationTime";
+  private static final String PING = "ping";
+  private static final String PROJECT = "$project";
+  private static final String SAMPLE = "$sample";
+  private static final int SAMPLES_PER_PARTITION = 10;
+  private static final String SHADOW_SUFFIX = "_migration";
+  private static final String SIZE = "size";
+  private static final String SORT = "$sort";
+  private static final String STRICT = "strict";
+  private static final String TIMESERIES = "timeseries";
+  private static final String TIMESTAMP_TYPE = "82";
+  private static final String TO_COLL = "to.coll";
+  private static final String VALIDATION_ACTION = "validationAction";
+  private static final String VALIDATION_LEVEL = "validationLevel";
+  private static final String VALIDATOR = "validator";
+
+  final String name;
+  private final AtomicLong copied = new AtomicLong();
+  private final CreateCollectionOptions createOptions;
+  private final MongoDatabase database;
+  private final Long generation;
+  private final List<IndexModel> indexes;
+  private final Limits limits;
+  private final MongoCollectionSpec.Migration settings;
+  private final Document sourceOptions;
+  private final Instant started = now();
+  private Throwable error;
+  private long nextPermit = nanoTime();
+  private volatile Phase phase = Phase.prepare;
+  private volatile long total = -1;
+
+  /**
+   * The <code>createOptions</code> and the <code>indexes</code> are those of the new collection.
+   * The <code>sourceOptions</code> are the current options of the collection. The <code>
+   * generation</code> is that of the resource that caused the migration.
+   */
+  Migration(
+      final MongoDatabase database,
+      final String name,
+      final Document sourceOptions,
+      final CreateCollectionOptions createOptions,
+      final List<IndexModel> indexes,
+      final MongoCollectionSpec.Migration settings,
+      final Limits limits,
+      final Long generation) {
+    this.database = database;
+    this.name = name;
+    this.sourceOptions = sourceOptions;
+    this.createOptions = createOptions;
+    this.indexes = indexes;
+    this.settings = settings;
+    this.limits = limits;
+    this.generation = generation;
+  }
+
+  /**
+   * Returns the cluster time of a resume token. Its <code>_data</code> field is a hexadecimal
+   * string that starts with the type byte of a timestamp, followed by the eight bytes of it.
+   */
+  static BsonTimestamp clusterTime(final BsonDocument token) {
+    final String data =
+        ofNullable(token.get(DATA))
+            .filter(BsonValue::isString)
+            .map(d -> d.asString().getValue())
+            .orElse("");
+
+    if (!data.startsWith(TIMESTAMP_TYPE) || data.length() < 18) {
+      throw new IllegalStateException("The resume token " + token.toJson() + " isn't supported");
+    }
+
+    return new BsonTimestamp(Long.parseUnsignedLong(data.substring(2, 18), 16));
+  }
+
+  /** The validator that rejects all inserts and updates, around the one the collection had. */
+  private static Document fence(final Document validator) {
+    return new Document(AND, list(FENCE, validator));
+  }
+
+  /** Returns the original validator when the collection was blocked by an interrupted migration. */
+  private static Optional<Document> fenced(final Document validator) {
+    return Optional.of(validator)
+        .filter(v -> v.size() == 1)
+        .map(v -> v.get(AND))
+        .filter(List.class::isInstance)
+        .map(List.class::cast)
+        .filter(l -> l.size() == 2 && FENCE.equals(l.get(0)) && l.get(1) instanceof Document)
+        .map(l -> (Document) l.get(1));
+  }
+
+  private static BsonDocument idBound(final BsonValue value) {
+    return new BsonDocument(ID, value);
+  }
+
+  private static BsonTimestamp operationTime(final Document response) {
+    return ofNullable(response.get(OPERATION_TIME, BsonTimestamp.class))
+        .orElseThrow(() -> new IllegalStateException("The server didn't return its cluster time"));
+  }
+
+  /** Turns the description of an update into the update itself. */
+  private static Bson update(final UpdateDescription description) {
+    final List<Bson> updates = new ArrayList<>();
+
+    ofNullable(description.getUpdatedFields())
+        .ifPresent(f -> f.forEach((k, v) -> updates.add(Updates.set(k, v))));
+    ofNullable(description.getRemovedFields())
+        .ifPresent(f -> f.forEach(r -> updates.add(Updates.unset(r))));
+    ofNullable(description.getTruncatedArrays())
+        .ifPresent(
+            t ->
+                t.forEach(
+                    a ->
+                        updates.add(
+                            Updates.pushEach(
+                                a.getField(), list(), new PushOptions().slice(a.getNewSize())))));
+
+    return Updates.combine(updates);
+  }
+
+  /** A time series collection doesn't have a unique <code>_id</code> and limits updates. */
+  private boolean appendOnly() {
+    return createOptions.getTimeSeriesOptions() != null;
+  }
+
+  private void apply(
+      final MongoCollection<RawBsonDocument> target,
+      final ChangeStreamDocument<RawBsonDocument> event) {
+    final BsonDocument key = event.getDocumentKey();
+
+    switch (event.getOperationType()) {
+      case INSERT, REPLACE, UPDATE -> {
+        final RawBsonDocument document = event.getFullDocument();
+
+        if (appendOnly()) {
+          applyAppendOnly(target, event.getOperationType(), key, document);
+        } else if (document != null) {
+          target.replaceOne(key, document, new ReplaceOptions().upsert(true));
+        } else if (event.getUpdateDescription() != null) {
+          // The document couldn't be looked up. When it was deleted, that event follows.
+          target.updateOne(key, update(event.getUpdateDescription()));
+        }
+      }
+      case DELETE -> {
+        if (appendOnly()) {
+          applyAppendOnly(target, event.getOperationType(), key, null);
+        } else {
+          target.deleteOne(key);
+        }
+      }
+      default -> {
+        // Other events don't change documents.
+      }
+    }
+  }
+
+  private void applyAppendOnly(
+      final MongoCollection<RawBsonDocument> target,
+      final OperationType operation,
+      final BsonDocument key,
+      final RawBsonDocument document) {
+    if (operation != OperationType.INSERT) {
+      throw new IllegalStateException(
+          "The time series collection "
+              + name
+              + " can't take the "
+              + operation.getValue()
+              + " operations that happen during the migration");
+    }
+
+    if (target.find(key).first() == null) {
+      target.insertOne(document);
+    }
+  }
+
+  /**
+   * Returns the <code>_id</code> values that split the collection into ranges of about the same
+   * size. They are taken from a random sample.
+   */
+  private List<BsonValue> boundaries(final MongoCollection<RawBsonDocument> source) {
+    if (settings.parallelism <= 1 || !partitioned()) {
+      return list();
+    }
+
+    final List<BsonValue> sample =
+        stream(
+                source
+                    .aggregate(
+                        list(
+                            new Document(
+                                SAMPLE,
+                                new Document(SIZE, settings.parallelism * SAMPLES_PER_PARTITION)),
+                            new Document(PROJECT, ID_INDEX),
+                            new Document(SORT, ID_INDEX)))
+                    .iterator())
+            .map(d -> d.get(ID))
+            .toList();
+
+    return sample.isEmpty()
+        ? list()
+        : range(1, settings.parallelism)
+            .mapToObj(i -> sample.get(i * sample.size() / settings.parallelism))
+            .distinct()
+            .toList();
+  }
+
+  /**
+   * Applies the changes from the change stream until it has caught up with the moment this method
+   * was called. Returns the resume token after the last event.
+   */
+  private BsonDocument catchUp(
+      final MongoCollection<RawBsonDocument> target, final BsonDocument token) {
+    final long until = now().getEpochSecond();
+
+    return follow(
+        target,
+        token,
+        e -> e == null || e.getClusterTime() == null || e.getClusterTime().getTime() >= until);
+  }
+
+  /**
+   * Applies the changes from the change stream until it has reached <code>time</code>. It fails
+   * when that doesn't happen within the timeout. Returns the resume token after the last event.
+   */
+  private BsonDocument catchUp(
+      final MongoCollection<RawBsonDocument> target,
+      final BsonDocument token,
+      final BsonTimestamp time) {
+    final Instant deadline = now().plus(CUT_OVER_TIMEOUT);
+    BsonDocument last = token;
+
+    try (MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor =
+        changeStream().resumeAfter(token).cursor()) {
+      while (clusterTime(last).compareTo(time) < 0) {
+        if (!now().isBefore(deadline)) {
+          throw new IllegalStateException(
+              "The change stream of collection "
+                  + name
+                  + " didn't catch up within "
+                  + CUT_OVER_TIMEOUT.toSeconds()
+                  + "s");
+        }
+
+        ofNullable(cursor.tryNext()).ifPresent(e -> apply(target, e));
+        last = ofNullable(cursor.getResumeToken()).orElse(last);
+      }
+    }
+
+    return last;
+  }
+
+  /** The events of the collection and the rename that replaces it. */
+  private ChangeStreamIterable<RawBsonDocument> changeStream() {
+    return database
+        .watch(
+            list(Aggregates.match(or(eq(NS_COLL, name), eq(TO_COLL, name)))), RawBsonDocument.class)
+        .fullDocument(UPDATE_LOOKUP)
+        .maxAwaitTime(1, SECONDS);
+  }
+
+  private void copy(
+      final MongoCollection<RawBsonDocument> source,
+      final MongoCollection<RawBsonDocument> target) {
+    final List<BsonValue> boundaries = boundaries(source);
+    final ExecutorService executor = newFixedThreadPool(boundaries.size() + 1);
+
+    try {
+      allOf(
+              range(0, boundaries.size() + 1)
+                  .mapToObj(
+                      i ->
+                          runAsync(
+                              () ->
+                                  copy(
+                                      source,
+                                      target,
+                                      i > 0 ? boundaries.get(i - 1) : null,
+                                      i < boundaries.size() ? boundaries.get(i) : null),
+                              executor))
+                  .toArray(CompletableFuture[]::new))
+          .join();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void copy(
+      final MongoCollection<RawBsonDocument> source,
+      final MongoCollection<RawBsonDocument> target,
+      final BsonValue min,
+      final BsonValue max) {
+    final List<RawBsonDocument> batch = new ArrayList<>(settings.batchSize);
+
+    try (MongoCursor<RawBsonDocument> cursor = find(source, min, max).iterator()) {
+      while (cursor.hasNext()) {
+        batch.add(cursor.next());
+
+        if (batch.size() == settings.batchSize) {
+          insert(target, batch);
+          batch.clear();
+        }
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      insert(target, batch);
+    }
+  }
+
+  /**
+   * Drains the changes to the old collection that were made before it was replaced. The stream is
+   * read until it has passed the rename. The late changes are then applied, unless a client has
+   * written the document after the cutover. The stream is read again before each change, so the
+   * writes of clients in the meantime are also seen.
+   */
+  private void drain(final MongoCollection<RawBsonDocument> target, final BsonDocument token) {
+    final Instant deadline = now().plus(CUT_OVER_TIMEOUT);
+    final List<ChangeStreamDocument<RawBsonDocument>> late = new ArrayList<>();
+    final Set<BsonDocument> written = new HashSet<>();
+
+    try (MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor =
+        changeStream().fullDocument(DEFAULT).resumeAfter(token).cursor()) {
+      boolean replaced = false;
+      ChangeStreamDocument<RawBsonDocument> event;
+
+      do {
+        event = cursor.tryNext();
+
+        if (event != null) {
+          if (replaces(event)) {
+            replaced = true;
+          } else if (event.getDocumentKey() != null) {
+            if (replaced) {
+              written.add(event.getDocumentKey());
+            } else {
+              late.add(event);
+            }
+          }
+        }
+      } while ((event != null || !replaced) && now().isBefore(deadline));
+
+      if (!replaced) {
+        throw new IllegalStateException(
+            "The change stream of collection "
+                + name
+                + " didn't reach the cutover within "
+                + CUT_OVER_TIMEOUT.toSeconds()
+                + "s, so deletes just before it may not have been applied");
+      }
+
+      late.forEach(
+          e -> {
+            readWritten(cursor, written);
+
+            if (!written.contains(e.getDocumentKey())) {
+              apply(target, e);
+            }
+          });
+    }
+  }
+
+  Optional<Throwable> error() {
+    return ofNullable(error);
+  }
+
+  /**
+   * Blocks the inserts and updates of the collection, unless it is a time series collection.
+   * Returns the cluster time from which nothing more is written.
+   */
+  private BsonTimestamp fence() {
+    return operationTime(
+        limits.ddl(
+            () ->
+                database.runCommand(
+                    validated()
+                        ? new Document(COLL_MOD, name)
+                            .append(VALIDATOR, fence(validator()))
+                            .append(VALIDATION_LEVEL, STRICT)
+                            .append(VALIDATION_ACTION, ERROR)
+                        : new Document(PING, 1))));
+  }
+
+  private FindIterable<RawBsonDocument> find(
+      final MongoCollection<RawBsonDocument> source, final BsonValue min, final BsonValue max) {
+    final FindIterable<RawBsonDocument> find = source.find().batchSize(settings.batchSize);
+
+    if (!partitioned()) {
+      return find;
+    }
+
+    find.hint(ID_INDEX);
+    ofNullable(min).ifPresent(m -> find.min(idBound(m)));
+    ofNullable(max).ifPresent(m -> find.max(idBound(m)));
+
+    return find;
+  }
+
+  /** Records the outcome. */
+  void finish(final Throwable error) {
+    this.error = error;
+    phase = error == null ? Phase.done : Phase.failed;
+  }
+
+  boolean finished() {
+    return phase == Phase.done || phase == Phase.failed;
+  }
+
+  /**
+   * Applies events from the resume token on until <code>stop</code> says so. A <code>null</code>
+   * event means the change stream has nothing more for now.
+   */
+  private BsonDocument follow(
+      final MongoCollection<RawBsonDocument> target,
+      final BsonDocument token,
+      final Predicate<ChangeStreamDocument<RawBsonDocument>> stop) {
+    BsonDocument last = token;
+
+    try (MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor =
+        changeStream().resumeAfter(token).cursor()) {
+      ChangeStreamDocument<RawBsonDocument> event;
+
+      do {
+        event = cursor.tryNext();
+
+        if (event != null) {
+          apply(target, event);
+        }
+
+        last = ofNullable(cursor.getResumeToken()).orElse(last);
+      } while (!stop.test(event));
+    }
+
+    return last;
+  }
+
+  private void insert(
+      final MongoCollection<RawBsonDocument> target, final List<RawBsonDocument> batch) {
+    throttle(batch.size());
+    target.insertMany(batch, new InsertManyOptions().ordered(false));
+    copied.addAndGet(batch.size());
+  }
+
+  /** The ranges rely on the <code>_id</code> index, which a time series collection doesn't have. */
+  private boolean partitioned() {
+    return !sourceOptions.containsKey(TIMESERIES);
+  }
+
+  /** Adds the documents clients have written to the new collection since the last read. */
+  private void readWritten(
+      final MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor,
+      final Set<BsonDocument> written) {
+    ChangeStreamDocument<RawBsonDocument> event;
+
+    while ((event = cursor.tryNext()) != null) {
+      ofNullable(event.getDocumentKey()).ifPresent(written::add);
+    }
+  }
+
+  /** The rename that puts the new collection in the place of the old one. */
+  private boolean replaces(final ChangeStreamDocument<RawBsonDocument> event) {
+    return event.getOperationType() == OperationType.RENAME
+        && ofNullable(event.getDestinationNamespace())
+            .filter(n -> n.getCollectionName().equals(name))
+            .isPresent();
+  }
+
+  void run() {
+    final MongoCollection<RawBsonDocument> source =
+        database.getCollection(name, RawBsonDocument.class);
+    final String shadowName = name + SHADOW_SUFFIX;
+    final MongoCollection<RawBsonDocument> shadow =
+        database.getCollection(shadowName, RawBsonDocument.class);
+    boolean replaced = false;
+
+    try {
+      LOGGER.info(() -> "Start migration of collection " + name + " through " + shadowName);
+
+      if (fenced(sourceValidator()).isPresent()) {
+        unfence();
+      }
+
+      limits.ddl(
+          () -> {
+            shadow.drop();
+            database.createCollection(shadowName, createOptions);
+          });
+      total = source.estimatedDocumentCount();
+
+      final BsonDocument token = startToken();
+
+      phase = Phase.copy;
+      copy(source, shadow);
+      phase = Phase.indexes;
+
+      if (!indexes.isEmpty()) {
+        limits.indexBuild(() -> shadow.createIndexes(indexes));
+      }
+
+      phase = Phase.catchUp;
+
+      final BsonDocument caughtUp = catchUp(shadow, token);
+
+      phase = Phase.cutOver;
+
+      final BsonDocument last = catchUp(shadow, caughtUp, fence());
+
+      limits.ddl(
+          () ->
+              shadow.renameCollection(
+                  new MongoNamespace(database.getName(), name),
+                  new RenameCollectionOptions().dropTarget(true)));
+      replaced = true;
+      drain(source, last);
+      LOGGER.info(() -> "Migrated collection " + name + " with " + copied.get() + " documents");
+    } catch (RuntimeException e) {
+      if (!replaced && phase == Phase.cutOver) {
+        tryToDo(
+            this::unfence,
+            u ->
+                LOGGER.log(
+                    SEVERE,
+                    u,
+                    () ->
+                        "Can't unblock the writes of collection " + name + ": " + u.getMessage()));
+      }
+
+      if (!replaced) {
+        tryToDoSilent(shadow::drop);
+      }
+
+      throw e;
+    }
+  }
+
+  private Document sourceValidator() {
+    return ofNullable(sourceOptions.get(VALIDATOR, Document.class)).orElseGet(Document::new);
+  }
+
+  /** The position in the change stream from where the changes during the copy are applied. */
+  private BsonDocument startToken() {
+    try (MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor =
+        changeStream().cursor()) {
+      return ofNullable(cursor.getResumeToken())
+          .orElseThrow(
+              () -> new IllegalStateException("No change stream position for collection " + name));
+    }
+  }
+
+  MongoCollectionStatus.Migration status() {
+    return new MongoCollectionStatus.Migration(
+        phase.name(),
+        !finished(),
+        started,
+        copied.get(),
+        total,
+        error().map(Throwable::getMessage).orElse(null),
+        generation);
+  }
+
+  /** Spreads the inserts, so they don't go faster than the configured rate. */
+  private void throttle(final int documents) {
+    if (settings.maxDocumentsPerSecond > 0) {
+      final long wait;
+
+      synchronized (this) {
+        final long now = nanoTime();
+        final long start = max(nextPermit, now);
+
+        nextPermit = start + SECONDS.toNanos(documents) / settings.maxDocumentsPerSecond;
+        wait = start - now;
+      }
+
+      if (wait > 0) {
+        tryToDoSilent(() -> NANOSECONDS.sleep(wait));
+      }
+    }
+  }
+
+  /** Puts back the validation of the collection as it was before the migration. */
+  private void unfence() {
+    if (validated()) {
+      limits.ddl(
+          () ->
+              database.runCommand(
+                  new Document(COLL_MOD, name)
+                      .append(VALIDATOR, validator())
+                      .append(VALIDATION_LEVEL, sourceOptions.get(VALIDATION_LEVEL, STRICT))
+                      .append(VALIDATION_ACTION, sourceOptions.get(VALIDATION_ACTION, ERROR))));
+    }
+  }
+
+  /** A time series collection can't have a validator. */
+  private boolean validated() {
+    return !sourceOptions.containsKey(TIMESERIES);
+  }
+
+  /** The validator of the collection without the block of an interrupted migration. */
+  private Document validator() {
+    final Document validator = sourceValidator();
+
+    return fenced(validator).orElse(validator);
+  }
+
+  @SuppressWarnings("java:S115") // This goes in the status.
+  enum Phase {
+    catchUp,
+    copy,
+    cutOver,
+    done,
+    failed,
+    indexes,
+    prepare
+  }
+}
@@ -0,0 +1,71 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Optional.ofNullable;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Runs collection migrations in the background, so a reconciliation doesn't wait for them. A
+ * migration that was interrupted by a restart of the operator is started again from scratch.
+ */
+class Migrations {
+  private static final String ERROR = "error";
+  private static final String METRIC_DURATION = "mongo.collections.migration";
+  private static final String METRIC_RUNNING = "mongo.collections.migrations.running";
+  private static final String OUTCOME = "outcome";
+  private static final String SUCCESS = "success";
+
+  private final ExecutorService executor = newCachedThreadPool();
+  private final Map<String, Migration> migrations = new ConcurrentHashMap<>();
+  private final Consumer<String> onDone;
+  private final MeterRegistry registry;
+
+  Migrations(final MeterRegistry registry, final Consumer<String> onDone) {
+    this.registry = registry;
+    this.onDone = onDone;
+    registry.gaugeMapSize(METRIC_RUNNING, Tags.empty(), migrations);
+  }
+
+  /** Returns the migration of the collection if it has completed. It is then forgotten. */
+  Optional<Migration> completed(final String collection) {
+    return ofNullable(migrations.get(collection))
+        .filter(Migration::finished)
+        .map(m -> migrations.remove(collection));
+  }
+
+  /** Indicates whether a migration of the collection is running or hasn't been picked up yet. */
+  boolean contains(final String collection) {
+    return migrations.containsKey(collection);
+  }
+
+  Optional<Migration> running(final String collection) {
+    return ofNullable(migrations.get(collection)).filter(m -> !m.finished());
+  }
+
+  void submit(final Migration migration) {
+    final Timer.Sample sample = Timer.start(registry);
+
+    migrations.put(migration.name, migration);
+    runAsync(migration::run, executor)
+        .whenComplete(
+            (r, e) -> {
+              migration.finish(
+                  ofNullable(e).map(t -> ofNullable(t.getCause()).orElse(t)).orElse(null));
+              sample.stop(
+                  Timer.builder(METRIC_DURATION)
+                      .description("The duration of collection migrations")
+                      .tag(OUTCOME, e == null ? SUCCESS : ERROR)
+                      .register(registry));
+              onDone.accept(migration.name);
+            });
+  }
+}
@@ -1,34 +1,45 @@
 package net.pincette.mongo.collections;
 
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Indexes.ascending;
-import static com.mongodb.client.model.Indexes.compoundIndex;
-import static com.mongodb.client.model.Indexes.descending;
 import static com.typesafe.config.ConfigFactory.defaultOverrides;
 import static io.javaoperatorsdk.operator.api.reconciler.EventSourceInitializer.generateNameFor;
 import static io.javaoperatorsdk.operator.api.reconciler.UpdateControl.patchStatus;
 import static java.lang.Integer.MAX_VALUE;
+import static java.lang.System.getenv;
+import static java.time.Duration.ofDays;
+import static java.time.Duration.ofHours;
+import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
+import static java.time.Instant.now;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.SEVERE;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Stream.concat;
 import static net.pincette.jes.util.Configuration.loadDefault;
-import static net.pincette.json.Jackson.from;
 import static net.pincette.json.Jackson.to;
-import static net.pincette.json.JsonUtil.createArrayBuilder;
-import static net.pincette.json.JsonUtil.createObjectBuilder;
-import static net.pincette.json.JsonUtil.createValue;
 import static net.pincette.mongo.BsonUtil.fromJsonNew;
 import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.mongo.collections.IndexReplacement.swap;
 import static net.pincette.mongo.collections.MongoCollectionSpec.Collation.defaultCollation;
+import static net.pincette.mongo.collections.Scheduler.jitter;
 import static net.pincette.operator.util.Util.replyUpdateIfExists;
+import static net.pincette.util.Collections.list;
 import static net.pincette.util.Collections.map;
 import static net.pincette.util.Pair.pair;
 import static net.pincette.util.StreamUtil.stream;
 import static net.pincette.util.Util.tryToGet;
 import static net.pincette.util.Util.tryToGetRethrow;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
@@ -40,34 +51,56 @@ import com.mongodb.client.model.CollationCaseFirst;
 import com.mongodb.client.model.CollationMaxVariable;
 import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexModel;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.TimeSeriesGranularity;
 import com.mongodb.client.model.TimeSeriesOptions;
 import com.mongodb.client.model.ValidationAction;
 import com.mongodb.client.model.ValidationOptions;
 import com.typesafe.config.Config;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientBuilder;
 import io.javaoperatorsdk.operator.api.reconciler.Context;
 import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
 import io.javaoperatorsdk.operator.api.reconciler.EventSourceInitializer;
 import io.javaoperatorsdk.operator.api.reconciler.Reconciler;
 import io.javaoperatorsdk.operator.api.reconciler.UpdateControl;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
 import io.javaoperatorsdk.operator.processing.event.source.EventSource;
 import io.javaoperatorsdk.operator.processing.event.source.timer.TimerEventSource;
 import io.javaoperatorsdk.operator.processing.retry.GradualRetry;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
-import javax.json.JsonObject;
-import javax.json.JsonValue;
-import net.pincette.mongo.BsonUtil;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import net.pincette.mongo.collections.MongoCollectionSpec.Index;
 import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
 import net.pincette.mongo.collections.MongoCollectionSpec.Index.Options;
+import net.pincette.mongo.collections.MongoCollectionSpec.MaintenanceWindow;
 import net.pincette.mongo.collections.MongoCollectionSpec.TimeSeries;
-import net.pincette.operator.util.Status;
+import net.pincette.mongo.collections.MongoCollectionStatus.Deferral;
+import net.pincette.mongo.collections.MongoCollectionStatus.IndexResult;
+import net.pincette.mongo.collections.MongoCollectionStatus.IndexUsage;
+import net.pincette.mongo.collections.MongoCollectionStatus.RedundantIndex;
 import net.pincette.operator.util.Status.Condition;
 import net.pincette.util.ImmutableBuilder;
+import net.pincette.util.Pair;
+import net.pincette.util.Util;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 
 @io.javaoperatorsdk.operator.api.reconciler.ControllerConfiguration
@@ -77,16 +110,201 @@ public class MongoCollectionReconciler
   private static final ClusteredIndexOptions CLUSTERED_INDEX_OPTIONS =
       new ClusteredIndexOptions(eq("_id", 1), true);
   private static final String CLUSTERED_NAME = "_id_";
+  private static final String COLL_MOD = "collMod";
+  private static final String CHANGE_STREAM = "changeStream";
+  private static final String CREATE = "create";
+  private static final String CONFIG_CATALOG_READ_CONCURRENCY = "catalogReadConcurrency";
+  private static final String CONFIG_CATALOG_READS_PER_SECOND = "catalogReadsPerSecond";
+  private static final String CONFIG_CATALOG_REFRESH_INTERVAL = "catalogRefreshInterval";
+  private static final String CONFIG_CHANGE_STREAM_RESYNC_INTERVAL = "changeStreamResyncInterval";
+  private static final String CONFIG_CIRCUIT_BREAKER_OPEN_INTERVAL = "circuitBreakerOpenInterval";
+  private static final String CONFIG_CIRCUIT_BREAKER_THRESHOLD = "circuitBreakerThreshold";
   private static final String CONFIG_DATABASE = "database";
+  private static final String CONFIG_DDL_CONCURRENCY = "ddlConcurrency";
+  private static final String CONFIG_DDL_PER_SECOND = "ddlPerSecond";
+  private static final String CONFIG_ERROR_RETRY_INTERVAL = "errorRetryInterval";
+  private static final String CONFIG_INDEX_BUILD_POLL_INTERVAL = "indexBuildPollInterval";
+  private static final String CONFIG_INDEX_STATS_INTERVAL = "indexStatsInterval";
+  private static final String CONFIG_LEASE_DURATION = "leaseDuration";
+  private static final String CONFIG_MAINTENANCE_WINDOWS = "maintenanceWindows";
+  private static final String CONFIG_MAX_CACHE_DIRTY_PERCENTAGE = "maxCacheDirtyPercentage";
+  private static final String CONFIG_MAX_CACHE_FILL_PERCENTAGE = "maxCacheFillPercentage";
+  private static final String CONFIG_MAX_CONCURRENT_INDEX_BUILDS = "maxConcurrentIndexBuilds";
+  private static final String CONFIG_MAX_ERROR_RETRY_INTERVAL = "maxErrorRetryInterval";
+  private static final String CONFIG_MAX_REPLICATION_LAG = "maxReplicationLag";
+  private static final String CONFIG_RESUME_TOKEN_COLLECTION = "resumeTokenCollection";
+  private static final String CONFIG_RESYNC_INTERVAL = "resyncInterval";
+  private static final String CONFIG_STARTUP_SNAPSHOT = "startupSnapshot";
   private static final String CONFIG_URI = "uri";
-  private static final String DIRECTION = "direction";
-  private static final String FIELD = "field";
-  private static final String KEY = "key";
+  private static final String CONFIG_VERIFICATION_INTERVAL = "verificationInterval";
+  private static final String DEFERRED = "deferred";
+  private static final String DROP = "drop";
+  private static final String DROP_INDEXES = "dropIndexes";
+  private static final String ENV_POD_NAME = "POD_NAME";
+  private static final String ENV_POD_NAMESPACE = "POD_NAMESPACE";
+  private static final String ERROR = "error";
+  private static final String EXPIRE_AFTER_SECONDS = "expireAfterSeconds";
+  private static final String HIDDEN = "hidden";
+  private static final String HIDE = "hide";
+  private static final String INDEX = "index";
   private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String METRIC_CATALOG_HITS = "mongo.collections.catalog.hits";
+  private static final String METRIC_CATALOG_MISSES = "mongo.collections.catalog.misses";
+  private static final String METRIC_CIRCUIT_OPEN = "mongo.collections.circuit.open";
+  private static final String METRIC_DRIFT = "mongo.collections.drift";
+  private static final String METRIC_INDEX_BUILDS_DEFERRED =
+      "mongo.collections.index.builds.deferred";
+  private static final String METRIC_RECONCILE = "mongo.collections.reconcile";
+  private static final String MODIFY = "modify";
+  private static final String NAME = "name";
+  private static final BsonString NO_NAME = new BsonString("");
+  private static final String OUTCOME = "outcome";
+  private static final String PREPARE_UNIQUE = "prepareUnique";
+  private static final String REASON = "reason";
+  private static final String RECONCILED = "reconciled";
+  private static final String RESYNC = "resync";
+  private static final String SKIPPED = "skipped";
+  private static final String SLOTS = "slots";
+  private static final String TEMPORARY_SUFFIX = "_swap";
+  private static final String TRIGGER = "trigger";
+  private static final String UNIQUE = "unique";
+  private static final String VERIFIED = "verified";
 
-  private final Config config = defaultOverrides().withFallback(loadDefault());
-  private final MongoClient mongoClient = mongoClient(config);
-  private final TimerEventSource<MongoCollection> timerEventSource = new TimerEventSource<>();
+  private final BuildAdmission admission;
+  private final Catalog catalog;
+  private final CircuitBreaker circuitBreaker;
+  private final ChangeStreamEventSource changeStream;
+  private final Duration changeStreamResyncInterval;
+  private final Set<String> changed = ConcurrentHashMap.newKeySet();
+  private final Duration indexBuildPollInterval;
+  private final IndexBuilds indexBuilds;
+  private final IndexStats indexStats;
+  private final Duration indexStatsInterval;
+  private final Limits limits;
+  private final Map<String, List<MaintenanceWindow>> maintenanceWindows;
+  private final Membership membership;
+  private final Migrations migrations;
+  private final Map<String, ResourceID> owners = new ConcurrentHashMap<>();
+  private final MeterRegistry registry;
+  private final Set<ResourceID> resources = ConcurrentHashMap.newKeySet();
+  private final Duration resyncInterval;
+  private final Scheduler scheduler;
+  private final Shards shards;
+
+  // The deletion of a resource comes through here, so no finalizer is needed to forget it.
+  private final TimerEventSource<MongoCollection> timerEventSource =
+      new TimerEventSource<>() {
+        @Override
+        public void onResourceDeleted(final MongoCollection resource) {
+          super.onResourceDeleted(resource);
+          forget(resource);
+        }
+      };
+  private final Duration verificationInterval;
+
+  public MongoCollectionReconciler() {
+    this(defaultOverrides().withFallback(loadDefault()), new SimpleMeterRegistry());
+  }
+
+  public MongoCollectionReconciler(final Config config, final MeterRegistry registry) {
+    final MongoClient mongoClient = mongoClient(config, registry);
+    final Limits limits =
+        new Limits(
+            configInt(config, CONFIG_CATALOG_READ_CONCURRENCY, 32),
+            configInt(config, CONFIG_DDL_CONCURRENCY, 4),
+            configDouble(config, CONFIG_CATALOG_READS_PER_SECOND, 0),
+            configDouble(config, CONFIG_DDL_PER_SECOND, 0),
+            registry);
+
+    this.registry = registry;
+
+    this.limits = limits;
+    catalog = catalog(config, mongoClient, limits);
+    indexBuilds =
+        new IndexBuilds(
+            mongoClient,
+            limits,
+            configInt(config, CONFIG_MAX_CONCURRENT_INDEX_BUILDS, 0),
+            registry,
+            n ->
+                ofNullable(owners.get(n.getCollectionName()))
+                    .ifPresent(r -> timerEventSource.scheduleOnce(r, 0)));
+    admission =
+        new BuildAdmission(
+            mongoClient,
+            limits,
+            configDuration(config, CONFIG_MAX_REPLICATION_LAG, ofSeconds(60)),
+            configInt(config, CONFIG_MAX_CACHE_DIRTY_PERCENTAGE, 15),
+            configInt(config, CONFIG_MAX_CACHE_FILL_PERCENTAGE, 95));
+    maintenanceWindows = maintenanceWindows(config);
+    migrations =
+        new Migrations(
+            registry,
+            n -> ofNullable(owners.get(n)).ifPresent(r -> timerEventSource.scheduleOnce(r, 0)));
+    changeStream =
+        new ChangeStreamEventSource(
+            catalog.database(),
+            config.hasPath(CONFIG_RESUME_TOKEN_COLLECTION)
+                ? config.getString(CONFIG_RESUME_TOKEN_COLLECTION)
+                : "mongo-collections-resume-tokens",
+            owners,
+            n -> {
+              catalog.invalidate(n);
+              changed.add(n);
+            });
+    changeStreamResyncInterval =
+        configDuration(config, CONFIG_CHANGE_STREAM_RESYNC_INTERVAL, ofMinutes(10));
+    resyncInterval = configDuration(config, CONFIG_RESYNC_INTERVAL, ofSeconds(60));
+    scheduler =
+        new Scheduler(
+            configDuration(config, CONFIG_ERROR_RETRY_INTERVAL, ofSeconds(5)),
+            configDuration(config, CONFIG_MAX_ERROR_RETRY_INTERVAL, ofMinutes(5)));
+    circuitBreaker =
+        new CircuitBreaker(
+            configInt(config, CONFIG_CIRCUIT_BREAKER_THRESHOLD, 5),
+            configDuration(config, CONFIG_CIRCUIT_BREAKER_OPEN_INTERVAL, ofSeconds(30)));
+    indexBuildPollInterval =
+        configDuration(config, CONFIG_INDEX_BUILD_POLL_INTERVAL, ofSeconds(10));
+    indexStats =
+        new IndexStats(
+            mongoClient,
+            new ConnectionString(config.getString(CONFIG_URI)),
+            config.getString(CONFIG_DATABASE),
+            limits);
+    indexStatsInterval = configDuration(config, CONFIG_INDEX_STATS_INTERVAL, ofHours(1));
+    shards = new Shards(mongoClient, config.getString(CONFIG_DATABASE), limits);
+    verificationInterval = configDuration(config, CONFIG_VERIFICATION_INTERVAL, ofMinutes(5));
+    membership = membership(config).orElse(null);
+
+    FunctionCounter.builder(METRIC_CATALOG_HITS, catalog, Catalog::hits).register(registry);
+    FunctionCounter.builder(METRIC_CATALOG_MISSES, catalog, Catalog::misses).register(registry);
+    Gauge.builder(METRIC_CIRCUIT_OPEN, circuitBreaker, b -> b.open().isPresent() ? 1 : 0)
+        .register(registry);
+  }
+
+  private static Catalog catalog(
+      final Config config, final MongoClient mongoClient, final Limits limits) {
+    final String database = config.getString(CONFIG_DATABASE);
+    final Duration refreshInterval =
+        configDuration(config, CONFIG_CATALOG_REFRESH_INTERVAL, ofSeconds(60));
+    final int readConcurrency = configInt(config, CONFIG_CATALOG_READ_CONCURRENCY, 32);
+    final int snapshotConcurrency =
+        !config.hasPath(CONFIG_STARTUP_SNAPSHOT) || config.getBoolean(CONFIG_STARTUP_SNAPSHOT)
+            ? readConcurrency
+            : 0;
+
+    return new Catalog(mongoClient, database, refreshInterval, limits, snapshotConcurrency);
+  }
+
+  private static MongoClientSettings clientSettings(
+      final Config config, final MeterRegistry registry) {
+    return MongoClientSettings.builder()
+        .applyConnectionString(new ConnectionString(config.getString(CONFIG_URI)))
+        .addCommandListener(new MongoMetricsCommandListener(registry))
+        .applyToConnectionPoolSettings(
+            b -> b.addConnectionPoolListener(new MongoMetricsConnectionPoolListener(registry)))
+        .build();
+  }
 
   private static Collation collationOptions(final MongoCollectionSpec.Collation collation) {
     return ImmutableBuilder.create(Collation::builder)
@@ -109,32 +327,18 @@ public class MongoCollectionReconciler
         .build();
   }
 
-  private static com.mongodb.client.MongoCollection<Document> create(
-      final String name, final MongoCollectionSpec spec, final MongoDatabase database) {
-    LOGGER.info(() -> "Create collection " + name);
-    database.createCollection(name, createOptions(spec));
-
-    return database.getCollection(name);
+  private static double configDouble(
+      final Config config, final String path, final double defaultValue) {
+    return config.hasPath(path) ? config.getDouble(path) : defaultValue;
   }
 
-  private static void createIndex(
-      final com.mongodb.client.MongoCollection<Document> collection, final Index index) {
-    final String name = collection.createIndex(indexes(index.keys), indexOptions(index.options));
-
-    LOGGER.info(() -> "Created index " + name);
+  private static Duration configDuration(
+      final Config config, final String path, final Duration defaultValue) {
+    return config.hasPath(path) ? config.getDuration(path) : defaultValue;
   }
 
-  private static JsonValue createKeys(final Document key) {
-    return key.entrySet().stream()
-        .reduce(
-            createArrayBuilder(),
-            (b, e) ->
-                b.add(
-                    createObjectBuilder()
-                        .add(FIELD, e.getKey())
-                        .add(DIRECTION, createValue(e.getValue()))),
-            (b1, b2) -> b1)
-        .build();
+  private static int configInt(final Config config, final String path, final int defaultValue) {
+    return config.hasPath(path) ? config.getInt(path) : defaultValue;
   }
 
   private static CreateCollectionOptions createOptions(final MongoCollectionSpec spec) {
@@ -163,26 +367,25 @@ public class MongoCollectionReconciler
         .build();
   }
 
-  private static void dropIndex(
-      final com.mongodb.client.MongoCollection<Document> collection, final String name) {
-    LOGGER.info(() -> "Drop index " + name);
-    collection.dropIndex(name);
+  private static String defaultName(final List<Key> keys) {
+    return keys.stream().map(k -> k.field + "_" + keyValue(k)).collect(joining("_"));
   }
 
   static boolean exists(final MongoDatabase database, final String collection) {
     return stream(database.listCollectionNames().iterator()).anyMatch(n -> n.equals(collection));
   }
 
-  private static Index fromBson(final Document bson) {
-    return tryToGetRethrow(
-            () ->
-                MAPPER.treeToValue(
-                    from(
-                        rearrangeProperties(
-                            BsonUtil.fromBson(bson.toBsonDocument()),
-                            createKeys(bson.get(KEY, Document.class)))),
-                    Index.class))
-        .orElse(null);
+  /** Returns a copy of the index that is hidden. */
+  private static Index hidden(final Index index) {
+    final Index copy = MAPPER.convertValue(index, Index.class);
+
+    copy.options.hidden = true;
+
+    return copy;
+  }
+
+  private static String indexName(final Index index) {
+    return ofNullable(index.options.name).orElseGet(() -> defaultName(index.keys));
   }
 
   private static IndexOptions indexOptions(final Options index) {
@@ -196,50 +399,80 @@ public class MongoCollectionReconciler
         .updateIf(o -> index.hidden, o -> o.hidden(true))
         .updateIf(() -> ofNullable(index.languageOverride), IndexOptions::languageOverride)
         .updateIf(() -> ofNullable(index.max), (o, v) -> o.max(index.max))
-        .updateIf(() -> ofNullable(index.min), (o, v) -> o.max(index.min))
+        .updateIf(() -> ofNullable(index.min), (o, v) -> o.min(index.min))
         .updateIf(() -> ofNullable(index.name), IndexOptions::name)
         .updateIf(
             () -> ofNullable(index.partialFilterExpression),
-            (o, v) -> o.partialFilterExpression(toBson(index.partialFilterExpression)))
+            (o, v) -> o.partialFilterExpression(BsonValues.toBson(v)))
         .updateIf(o -> index.sparse, o -> o.sparse(true))
         .updateIf(
             o -> index.sphereIndexVersion != -1, o -> o.sphereVersion(index.sphereIndexVersion))
         .updateIf(o -> index.textIndexVersion != -1, o -> o.textVersion(index.textIndexVersion))
         .updateIf(o -> index.unique, o -> o.unique(true))
-        .updateIf(() -> ofNullable(index.weights), (o, v) -> o.weights(toBson(index.weights)))
+        .updateIf(() -> ofNullable(index.weights), (o, v) -> o.weights(BsonValues.toBson(v)))
         .updateIf(
             () -> ofNullable(index.wildcardProjection),
-            (o, v) -> o.wildcardProjection(toBson(index.wildcardProjection)))
+            (o, v) -> o.wildcardProjection(BsonValues.toBson(v)))
         .build();
   }
 
   static List<Index> indexes(
       final com.mongodb.client.MongoCollection<Document> collection, final String locale) {
-    return stream(collection.listIndexes().iterator())
-        .filter(i -> !CLUSTERED_NAME.equals(i.getString("name")))
+    return indexes(
+        stream(collection.listIndexes(RawBsonDocument.class).iterator()).toList(), locale);
+  }
+
+  /**
+   * Decodes the indexes as <code>listIndexes</code> reports them. An index with a key type that
+   * isn't supported is left out with a warning, so the operator leaves it alone.
+   */
+  static List<Index> indexes(final List<? extends BsonDocument> indexes, final String locale) {
+    return indexes.stream()
+        .filter(i -> !CLUSTERED_NAME.equals(i.getString(NAME, NO_NAME).getValue()))
         // This index is implicit, not controlled.
-        .map(MongoCollectionReconciler::fromBson)
+        .flatMap(
+            i ->
+                tryToGet(
+                    () -> IndexCodec.decode(i),
+                    e -> {
+                      LOGGER.warning(
+                          () -> "Skipped the index " + i.toJson() + ": " + e.getMessage());
+                      return null;
+                    })
+                    .stream())
         .map(i -> removeDefaultCollation(i, locale))
         .toList();
   }
 
-  private static Bson indexes(final List<Key> keys) {
-    final List<Bson> indexes =
-        keys.stream()
-            .map(k -> k.direction == 1 ? ascending(k.field) : descending(k.field))
-            .toList();
-
-    return indexes.size() == 1 ? indexes.get(0) : compoundIndex(indexes);
+  private static Object keyValue(final Key key) {
+    return key.type != null ? key.type.value : key.direction;
   }
 
   static String locale(final MongoCollectionSpec spec) {
     return ofNullable(spec.collation).map(c -> c.locale).orElse(null);
   }
 
-  private static MongoClient mongoClient(final Config config) {
+  /**
+   * The maintenance windows per Kubernetes namespace. They apply to the resources in the namespace
+   * that don't have their own.
+   */
+  private static Map<String, List<MaintenanceWindow>> maintenanceWindows(final Config config) {
+    return config.hasPath(CONFIG_MAINTENANCE_WINDOWS)
+        ? config.getObject(CONFIG_MAINTENANCE_WINDOWS).entrySet().stream()
+            .collect(
+                toMap(
+                    Map.Entry::getKey,
+                    e ->
+                        MAPPER.convertValue(
+                            e.getValue().unwrapped(),
+                            new TypeReference<List<MaintenanceWindow>>() {})))
+        : map();
+  }
+
+  private static MongoClient mongoClient(final Config config, final MeterRegistry registry) {
     LOGGER.info(() -> "Connecting to " + stripUser(config.getString(CONFIG_URI)));
 
-    final MongoClient client = MongoClients.create(config.getString(CONFIG_URI));
+    final MongoClient client = MongoClients.create(clientSettings(config, registry));
 
     LOGGER.info("Connected");
 
@@ -250,42 +483,8 @@ public class MongoCollectionReconciler
     return ofNullable(resource.getSpec().name).orElseGet(() -> resource.getMetadata().getName());
   }
 
-  private static JsonObject rearrangeProperties(final JsonObject index, final JsonValue keys) {
-    return createObjectBuilder()
-        .add("keys", keys)
-        .add(
-            "options",
-            index.entrySet().stream()
-                .filter(e -> !e.getKey().equals("key"))
-                .reduce(
-                    createObjectBuilder(),
-                    (b, e) -> b.add(e.getKey(), e.getValue()),
-                    (b1, b2) -> b1))
-        .build();
-  }
-
-  private static void reconcile(
-      final String name, final MongoCollectionSpec spec, final MongoDatabase database) {
-    reconcileIndexes(
-        exists(database, name) ? database.getCollection(name) : create(name, spec, database),
-        spec.indexes,
-        locale(spec));
-  }
-
-  private static void reconcileIndexes(
-      final com.mongodb.client.MongoCollection<Document> collection,
-      final List<Index> indexes,
-      final String locale) {
-    final List<Index> found = indexes(collection, locale);
-
-    found.stream()
-        .filter(i -> indexes == null || !indexes.contains(i))
-        .forEach(i -> dropIndex(collection, i.options.name));
-    ofNullable(indexes).stream()
-        .flatMap(List::stream)
-        .map(i -> removeDefaultCollation(i, locale))
-        .filter(i -> !found.contains(i))
-        .forEach(i -> createIndex(collection, i));
+  private static List<String> names(final List<Index> indexes) {
+    return indexes.stream().map(i -> i.options.name).toList();
   }
 
   static List<Index> removeDefaultCollation(final List<Index> indexes, final String locale) {
@@ -294,7 +493,7 @@ public class MongoCollectionReconciler
     return indexes;
   }
 
-  private static Index removeDefaultCollation(final Index index, final String locale) {
+  static Index removeDefaultCollation(final Index index, final String locale) {
     ofNullable(index.options)
         .map(o -> o.collation)
         .filter(c -> c.equals(defaultCollation(locale)))
@@ -303,8 +502,16 @@ public class MongoCollectionReconciler
     return index;
   }
 
-  private static Status status(final MongoCollection resource) {
-    return ofNullable(resource.getStatus()).orElseGet(Status::new);
+  private static void runCollMod(
+      final MongoDatabase database, final String collection, final Document changes) {
+    final Document command = new Document(COLL_MOD, collection);
+
+    command.putAll(changes);
+    database.runCommand(command);
+  }
+
+  private static MongoCollectionStatus status(final MongoCollection resource) {
+    return ofNullable(resource.getStatus()).orElseGet(MongoCollectionStatus::new);
   }
 
   private static String stripUser(final String uri) {
@@ -327,6 +534,12 @@ public class MongoCollectionReconciler
 
   private static TimeSeriesOptions timeSeriesOptions(final TimeSeries timeSeries) {
     return ImmutableBuilder.create(() -> new TimeSeriesOptions(timeSeries.timeField))
+        .updateIf(
+            t -> timeSeries.bucketMaxSpan() != -1,
+            t -> t.bucketMaxSpan(timeSeries.bucketMaxSpan(), SECONDS))
+        .updateIf(
+            t -> timeSeries.bucketRounding() != -1,
+            t -> t.bucketRounding(timeSeries.bucketRounding(), SECONDS))
         .updateIf(
             () -> ofNullable(timeSeries.granularity),
             (t, v) -> t.granularity(TimeSeriesGranularity.valueOf(v.name())))
@@ -338,9 +551,33 @@ public class MongoCollectionReconciler
     return fromJsonNew(to((ObjectNode) MAPPER.valueToTree(o)));
   }
 
+  private static Optional<String> unsupported(final Index index, final MongoCollectionSpec spec) {
+    return ofNullable(spec.timeSeries).flatMap(t -> TimeSeriesIndexes.problem(index, t));
+  }
+
+  /** Returns the indexes MongoDB doesn't support for the collection, with the reason. */
+  private static List<Pair<Index, String>> unsupportedIndexes(
+      final String name, final List<Index> indexes, final MongoCollectionSpec spec) {
+    final List<Pair<Index, String>> unsupported =
+        indexes.stream().flatMap(i -> unsupported(i, spec).map(p -> pair(i, p)).stream()).toList();
+
+    unsupported.forEach(
+        p ->
+            LOGGER.warning(
+                () ->
+                    "Index "
+                        + indexName(p.first)
+                        + " of collection "
+                        + name
+                        + " is not created: "
+                        + p.second));
+
+    return unsupported;
+  }
+
   private static ValidationOptions validationOptions(final MongoCollectionSpec spec) {
     return ImmutableBuilder.create(ValidationOptions::new)
-        .update(o -> o.validator(toBson(spec.validator)))
+        .update(o -> o.validator(BsonValues.toBson(spec.validator)))
         .updateIf(
             () -> ofNullable(spec.validationAction),
             (o, v) -> o.validationAction(ValidationAction.fromString(v.name())))
@@ -350,35 +587,800 @@ public class MongoCollectionReconciler
         .build();
   }
 
+  private void create(final String name, final MongoCollectionSpec spec) {
+    LOGGER.info(() -> "Create collection " + name);
+    limits.ddl(() -> catalog.database().createCollection(name, createOptions(spec)));
+    catalog.invalidate(name);
+  }
+
+  private void createIndexes(
+      final String collection,
+      final List<Pair<Index, String>> indexes,
+      final MongoCollectionStatus status) {
+    if (!indexes.isEmpty()) {
+      final List<String> names =
+          indexes.stream()
+              .map(p -> ofNullable(p.second).orElseGet(() -> defaultName(p.first.keys)))
+              .toList();
+
+      LOGGER.info(() -> "Start building indexes " + names + " for collection " + collection);
+      indexBuilds.submit(
+          catalog.database().getCollection(collection),
+          indexes.stream()
+              .map(
+                  p ->
+                      new IndexModel(
+                          IndexCodec.keyPattern(p.first.keys),
+                          indexOptions(p.first.options).name(p.second)))
+              .toList(),
+          names);
+      status.indexBuilds = indexBuilds.running(namespace(collection), true);
+    }
+  }
+
+  /**
+   * When the plan has indexes to build, they are held back while there is no open maintenance
+   * window, the cluster is under pressure or all build slots are taken. The drops are held back
+   * with them, so an index is never dropped without its replacement. The modifications in place
+   * still go ahead. The deferral is kept in the status, which makes the resource come back until
+   * the builds can start.
+   */
+  private void deferBuilds(
+      final String name,
+      final IndexPlan plan,
+      final MongoCollectionStatus status,
+      final List<MaintenanceWindow> windows) {
+    final Optional<Pair<String, String>> deferral =
+        plan.create.isEmpty() && plan.rebuild.isEmpty()
+            ? Optional.empty()
+            : admission
+                .deferral(windows)
+                .or(
+                    () ->
+                        indexBuilds.reserve(namespace(name))
+                            ? Optional.empty()
+                            : Optional.of(pair(SLOTS, "All index build slots are taken")));
+
+    deferral.ifPresentOrElse(
+        d -> {
+          final List<String> names =
+              concat(plan.create.stream(), plan.rebuild.stream().map(p -> p.second))
+                  .map(MongoCollectionReconciler::indexName)
+                  .toList();
+
+          if (status.indexBuildsDeferred == null
+              || !d.first.equals(status.indexBuildsDeferred.reason)) {
+            LOGGER.info(() -> "Defer the build of " + names + " in " + name + ": " + d.second);
+            status.indexBuildsDeferred = new Deferral(d.first, d.second, names);
+          } else {
+            status.indexBuildsDeferred.message = d.second;
+            status.indexBuildsDeferred.names = names;
+          }
+
+          registry.counter(METRIC_INDEX_BUILDS_DEFERRED, REASON, d.first).increment();
+          plan.deferBuilds();
+        },
+        () -> status.indexBuildsDeferred = null);
+  }
+
+  private void dropIndexes(
+      final MongoDatabase database,
+      final String collection,
+      final List<String> names,
+      final MongoCollectionStatus status) {
+    runIndexCommand(
+        DROP,
+        names,
+        () -> database.runCommand(new Document(DROP_INDEXES, collection).append(INDEX, names)),
+        status);
+  }
+
   private UpdateControl<MongoCollection> error(final MongoCollection resource, final Throwable t) {
     LOGGER.log(SEVERE, t, t::getMessage);
-    timerEventSource.scheduleOnce(resource, 5000);
-    resource.setStatus(status(resource).withException(t));
+    circuitBreaker.failed(t);
+    timerEventSource.scheduleOnce(
+        resource, scheduler.failed(ResourceID.fromResource(resource)).toMillis());
+    resource.setStatus(status(resource).with(s -> s.withException(t)));
+    resource.getStatus().specFingerprint = null;
 
     return patchStatus(resource);
   }
 
+  /**
+   * The collection is left alone when its resource is deleted. Only what the operator keeps for the
+   * resource is removed.
+   */
+  private void forget(final MongoCollection resource) {
+    final ResourceID id = ResourceID.fromResource(resource);
+    final String name = name(resource);
+
+    owners.remove(name, id);
+    resources.remove(id);
+    scheduler.remove(id);
+
+    if (!owners.containsKey(name)) {
+      changed.remove(name);
+    }
+  }
+
+  private void hideIndex(
+      final MongoDatabase database,
+      final String collection,
+      final String name,
+      final MongoCollectionStatus status) {
+    runIndexCommand(
+        HIDE,
+        list(name),
+        () ->
+            runCollMod(
+                database,
+                collection,
+                new Document(INDEX, new Document(NAME, name).append(HIDDEN, true))),
+        status);
+  }
+
+  /**
+   * Marks the desired indexes as hidden when the index that was found for them hasn't been used for
+   * the number of days in the specification. An index that was hidden this way and was made visible
+   * by hand gets a new grace period.
+   */
+  private List<Index> hideUnused(
+      final List<Index> found,
+      final List<Index> desired,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status) {
+    if (spec.hideUnusedIndexesAfterDays <= 0) {
+      status.hiddenUnusedIndexes.clear();
+      return desired;
+    }
+
+    final Instant limit = now().minus(ofDays(spec.hideUnusedIndexesAfterDays));
+    final Map<String, IndexUsage> usage =
+        status.indexUsage.stream().collect(toMap(u -> u.name, u -> u));
+    final Map<IndexIdentity, Index> existing =
+        found.stream().collect(toMap(IndexIdentity::new, i -> i, (i1, i2) -> i1));
+
+    found.stream()
+        .filter(i -> !i.options.hidden && status.hiddenUnusedIndexes.contains(i.options.name))
+        .toList()
+        .forEach(
+            i -> {
+              status.hiddenUnusedIndexes.remove(i.options.name);
+              ofNullable(usage.get(i.options.name)).ifPresent(u -> u.lastUsed = now().toString());
+            });
+
+    return desired.stream()
+        .map(
+            i ->
+                ofNullable(existing.get(new IndexIdentity(i)))
+                    .filter(f -> !i.options.hidden)
+                    .filter(
+                        f ->
+                            ofNullable(usage.get(f.options.name))
+                                .filter(u -> u.unusedSince(limit))
+                                .isPresent())
+                    .map(
+                        f -> {
+                          if (!status.hiddenUnusedIndexes.contains(f.options.name)) {
+                            LOGGER.info(
+                                () ->
+                                    "Hide index "
+                                        + f.options.name
+                                        + ", which hasn't been used for "
+                                        + spec.hideUnusedIndexesAfterDays
+                                        + " days");
+                            status.hiddenUnusedIndexes.add(f.options.name);
+                          }
+
+                          return hidden(i);
+                        })
+                    .orElse(i))
+        .toList();
+  }
+
+  private boolean indexUsageDue(final MongoCollectionStatus status) {
+    return !indexStatsInterval.isZero()
+        && ofNullable(status.indexUsageCollected)
+            .map(Instant::parse)
+            .map(c -> c.plus(indexStatsInterval).isBefore(now()))
+            .orElse(true);
+  }
+
+  /**
+   * The windows of the resource itself take precedence over those of its namespace. Without any,
+   * index builds can start at any time.
+   */
+  private List<MaintenanceWindow> maintenanceWindows(final MongoCollection resource) {
+    return ofNullable(resource.getSpec().maintenanceWindows)
+        .orElseGet(
+            () -> maintenanceWindows.getOrDefault(resource.getMetadata().getNamespace(), list()));
+  }
+
+  /**
+   * The operator runs with several replicas when the environment variable <code>POD_NAME</code> is
+   * set. When the replicas change, all resources are triggered, so each replica picks up the ones
+   * it has gained.
+   */
+  private Optional<Membership> membership(final Config config) {
+    return ofNullable(getenv(ENV_POD_NAME))
+        .map(
+            pod -> {
+              final KubernetesClient client = new KubernetesClientBuilder().build();
+              final Membership m =
+                  new Membership(
+                      client,
+                      ofNullable(getenv(ENV_POD_NAMESPACE)).orElseGet(client::getNamespace),
+                      pod,
+                      configDuration(config, CONFIG_LEASE_DURATION, ofSeconds(30)),
+                      () -> resources.forEach(r -> timerEventSource.scheduleOnce(r, 0)));
+
+              m.start();
+
+              return m;
+            });
+  }
+
+  /**
+   * Starts a migration when options differ that can't be changed on the collection and the
+   * specification allows it. Returns <code>true</code> when a migration was started. A migration
+   * that failed isn't started again until the resource has a new generation.
+   */
+  private boolean migrate(
+      final String name,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status,
+      final Long generation) {
+    final Document options = catalog.options(name).orElseGet(Document::new);
+    final List<String> changes = CollectionOptions.immutableChanges(spec, options);
+
+    if (changes.isEmpty()) {
+      return false;
+    }
+
+    if (spec.migration == null) {
+      LOGGER.warning(
+          () ->
+              "The options "
+                  + changes
+                  + " of collection "
+                  + name
+                  + " differ, but they can only be changed with a migration");
+      return false;
+    }
+
+    if (status.migrationFailed(generation)) {
+      LOGGER.warning(
+          () ->
+              "The migration of collection "
+                  + name
+                  + " failed and is only tried again when the resource changes: "
+                  + status.migration.message);
+      return false;
+    }
+
+    final Migration migration =
+        new Migration(
+            catalog.database(),
+            name,
+            options,
+            createOptions(spec),
+            ofNullable(spec.indexes).stream()
+                .flatMap(List::stream)
+                .filter(i -> unsupported(i, spec).isEmpty())
+                .map(i -> new IndexModel(IndexCodec.keyPattern(i.keys), indexOptions(i.options)))
+                .toList(),
+            spec.migration,
+            limits,
+            generation);
+
+    LOGGER.info(() -> "Migrate collection " + name + " because of the options " + changes);
+    migrations.submit(migration);
+    status.migration = migration.status();
+
+    return true;
+  }
+
+  /**
+   * Changes the options of an index that can be changed online. Making an index unique takes two
+   * steps. The first makes MongoDB refuse new duplicates and the second fails when there are
+   * duplicates already.
+   */
+  private void modifyIndex(
+      final MongoDatabase database,
+      final String collection,
+      final Index found,
+      final Index desired,
+      final MongoCollectionStatus status) {
+    final Document index = new Document(NAME, found.options.name);
+
+    if (found.options.hidden != desired.options.hidden) {
+      index.append(HIDDEN, desired.options.hidden);
+    }
+
+    if (found.options.expireAfterSeconds != desired.options.expireAfterSeconds) {
+      index.append(EXPIRE_AFTER_SECONDS, desired.options.expireAfterSeconds);
+    }
+
+    runIndexCommand(
+        MODIFY,
+        list(found.options.name),
+        () -> {
+          if (!found.options.unique && desired.options.unique) {
+            runCollMod(
+                database,
+                collection,
+                new Document(
+                    INDEX, new Document(NAME, found.options.name).append(PREPARE_UNIQUE, true)));
+            index.append(UNIQUE, true);
+          }
+
+          if (index.size() > 1) {
+            runCollMod(database, collection, new Document(INDEX, index));
+          }
+        },
+        status);
+  }
+
+  private MongoNamespace namespace(final String collection) {
+    return new MongoNamespace(catalog.database().getName(), collection);
+  }
+
   public Map<String, EventSource> prepareEventSources(
       final EventSourceContext<MongoCollection> context) {
     timerEventSource.start();
 
-    return map(pair(generateNameFor(timerEventSource), timerEventSource));
+    return map(
+        pair(generateNameFor(timerEventSource), timerEventSource),
+        pair(generateNameFor(changeStream), changeStream));
+  }
+
+  /**
+   * While a migration is running for the collection nothing else is done with it. Its outcome is
+   * kept in the status.
+   */
+  private void reconcile(
+      final String name,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status,
+      final List<MaintenanceWindow> windows,
+      final Long generation) {
+    migrations
+        .completed(name)
+        .ifPresent(
+            m -> {
+              catalog.invalidate(name);
+              status.migration = m.status();
+              m.error().ifPresent(Util::rethrow);
+            });
+
+    final Optional<Migration> running = migrations.running(name);
+
+    if (running.isPresent()) {
+      status.migration = running.get().status();
+      return;
+    }
+
+    if (!catalog.exists(name)) {
+      create(name, spec);
+    } else if (migrate(name, spec, status, generation)) {
+      return;
+    } else {
+      reconcileOptions(name, spec);
+    }
+
+    reconcileIndexes(name, spec, status, windows);
+    shards.reconcile(name, spec.sharding, status);
   }
 
   public UpdateControl<MongoCollection> reconcile(
       final MongoCollection resource, final Context<MongoCollection> context) {
+    final Timer.Sample sample = Timer.start(registry);
+
     return tryToGet(
             () -> {
-              reconcile(
-                  name(resource),
-                  resource.getSpec(),
-                  mongoClient.getDatabase(config.getString(CONFIG_DATABASE)));
-              timerEventSource.scheduleOnce(resource, 60000);
-              resource.setStatus(status(resource).withCondition(new Condition()));
+              final String name = name(resource);
+              final String specFingerprint = Fingerprint.spec(name, resource.getSpec());
+              final MongoCollectionStatus status = status(resource);
+              final boolean unchanged = specFingerprint.equals(status.specFingerprint);
+              final boolean drifted = changed.remove(name);
+              final ResourceID id = ResourceID.fromResource(resource);
+
+              resources.add(id);
+
+              if (!responsible(resource, name, status)) {
+                owners.remove(name, id);
+                record(sample, SKIPPED);
+
+                return UpdateControl.<MongoCollection>noUpdate();
+              }
+
+              owners.put(name, id);
+
+              final Optional<Duration> open = circuitBreaker.open();
+
+              if (open.isPresent()) {
+                if (drifted) {
+                  changed.add(name);
+                }
+
+                timerEventSource.scheduleOnce(resource, jitter(open.get()).toMillis());
+                record(sample, DEFERRED);
+
+                return UpdateControl.<MongoCollection>noUpdate();
+              }
+
+              if (unchanged
+                  && !drifted
+                  && !verificationDue(status)
+                  && !indexUsageDue(status)
+                  && !status.pending()) {
+                timerEventSource.scheduleOnce(
+                    resource, scheduler.succeeded(id, resyncInterval(), false).toMillis());
+                record(sample, SKIPPED);
+
+                return UpdateControl.<MongoCollection>noUpdate();
+              }
+
+              final boolean drift =
+                  unchanged && !status.pending() && !verify(name, resource.getSpec(), status);
+              // The policy for unused indexes is applied when fresh usage has been collected.
+              final boolean usage = indexUsageDue(status) && indexStats.update(name, status);
+              final boolean reconcile =
+                  !unchanged
+                      || status.pending()
+                      || drift
+                      || (usage && resource.getSpec().hideUnusedIndexesAfterDays > 0);
+
+              if (drift) {
+                registry
+                    .counter(METRIC_DRIFT, TRIGGER, drifted ? CHANGE_STREAM : RESYNC)
+                    .increment();
+              }
+
+              if (reconcile) {
+                reconcile(
+                    name,
+                    resource.getSpec(),
+                    status,
+                    maintenanceWindows(resource),
+                    resource.getMetadata().getGeneration());
+              } else {
+                shards.update(name, resource.getSpec().sharding, status);
+              }
+
+              circuitBreaker.succeeded();
+              timerEventSource.scheduleOnce(
+                  resource,
+                  (status.indexBuilds.isEmpty() && !status.migrating()
+                          ? scheduler.succeeded(id, resyncInterval(), reconcile)
+                          : jitter(indexBuildPollInterval))
+                      .toMillis());
+
+              resource.setStatus(status.with(s -> s.withCondition(new Condition())));
+              resource.getStatus().indexFingerprint = Fingerprint.indexes(catalog.indexes(name));
+              resource.getStatus().lastVerified = now().toString();
+              resource.getStatus().owner =
+                  ofNullable(membership).map(Membership::member).orElse(null);
+              resource.getStatus().specFingerprint = specFingerprint;
+              record(sample, reconcile ? RECONCILED : VERIFIED);
 
               return replyUpdateIfExists(context.getClient(), resource);
             },
-            e -> error(resource, e))
+            e -> {
+              record(sample, ERROR);
+
+              return error(resource, e);
+            })
         .orElseGet(UpdateControl::noUpdate);
   }
+
+  /**
+   * While an index build is running for the collection nothing else is done with its indexes. The
+   * build is picked up again after a restart of the operator, because it is found with <code>
+   * $currentOp</code>.
+   */
+  private void reconcileIndexes(
+      final String name,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status,
+      final List<MaintenanceWindow> windows) {
+    indexBuilds
+        .completed(namespace(name))
+        .ifPresent(
+            b -> {
+              catalog.invalidate(name);
+              b.names.forEach(
+                  n ->
+                      status.indexResults.add(
+                          new IndexResult(
+                              n, CREATE, b.error().map(Throwable::getMessage).orElse(null))));
+              b.error().ifPresent(Util::rethrow);
+            });
+
+    // A build in the status may have been submitted before a restart of the operator.
+    status.indexBuilds = indexBuilds.running(namespace(name), !status.indexBuilds.isEmpty());
+
+    if (status.indexBuilds.isEmpty()) {
+      reconcileIndexes(name, spec, status, locale(spec), windows);
+    }
+  }
+
+  private void reconcileIndexes(
+      final String name,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status,
+      final String locale,
+      final List<MaintenanceWindow> windows) {
+    final List<Index> found = indexes(catalog.indexes(name), locale);
+    final List<Index> indexes =
+        ofNullable(spec.indexes).stream()
+            .flatMap(List::stream)
+            .map(i -> removeDefaultCollation(i, locale))
+            .toList();
+    final List<Index> desired = hideUnused(found, indexes, spec, status);
+    final IndexPlan plan = new IndexPlan(found, desired);
+    final List<Pair<Index, String>> refused =
+        concat(
+                unsupportedIndexes(name, desired, spec).stream(),
+                redundantIndexes(name, desired, found, spec, status).stream())
+            .toList();
+
+    if (!plan.isEmpty()) {
+      status.indexResults.clear();
+    }
+
+    refused.stream()
+        .filter(p -> plan.create.remove(p.first))
+        .forEach(
+            p -> status.indexResults.add(new IndexResult(indexName(p.first), CREATE, p.second)));
+
+    deferBuilds(name, plan, status, windows);
+
+    try {
+      final List<Index> drop =
+          concat(plan.drop.stream(), plan.rebuild.stream().map(p -> p.first)).toList();
+
+      plan.modify.forEach(p -> modifyIndex(catalog.database(), name, p.first, p.second, status));
+
+      if (spec.indexReplacement == swap) {
+        swapIndexes(name, plan, spec.indexSoakSeconds, status);
+      } else {
+        final List<Index> create =
+            concat(plan.create.stream(), plan.rebuild.stream().map(p -> p.second)).toList();
+
+        dropIndexes(catalog.database(), name, names(drop), status);
+        createIndexes(name, create.stream().map(i -> pair(i, i.options.name)).toList(), status);
+      }
+
+      if (status.indexBuildsDeferred == null) {
+        // The indexes that soak are still in the plan when the builds are deferred.
+        status.soakingIndexes.keySet().retainAll(names(drop));
+      }
+    } finally {
+      indexBuilds.release(namespace(name));
+    }
+
+    if (!plan.isEmpty()) {
+      catalog.invalidate(name);
+    }
+  }
+
+  /** Applies the collection options that can be changed online. */
+  private void reconcileOptions(final String name, final MongoCollectionSpec spec) {
+    final Document changes =
+        CollectionOptions.changes(spec, catalog.options(name).orElseGet(Document::new));
+
+    if (!changes.isEmpty()) {
+      LOGGER.info(() -> "Modify collection " + name + " with " + changes.toJson());
+      limits.ddl(() -> runCollMod(catalog.database(), name, changes));
+      catalog.invalidate(name);
+    }
+  }
+
+  private void record(final Timer.Sample sample, final String outcome) {
+    sample.stop(
+        Timer.builder(METRIC_RECONCILE)
+            .description("The duration of reconciliations")
+            .tag(OUTCOME, outcome)
+            .publishPercentileHistogram()
+            .register(registry));
+  }
+
+  /**
+   * Records the redundant indexes in the status and warns about new ones. It returns the strictly
+   * covered indexes with the reason when the specification refuses to create them. Only a desired
+   * index can be the reason for that, because the others are dropped.
+   */
+  private List<Pair<Index, String>> redundantIndexes(
+      final String name,
+      final List<Index> desired,
+      final List<Index> found,
+      final MongoCollectionSpec spec,
+      final MongoCollectionStatus status) {
+    final Set<IndexIdentity> declared = desired.stream().map(IndexIdentity::new).collect(toSet());
+    final List<Pair<Index, Index>> redundant = RedundantIndexes.find(desired, found);
+    final List<RedundantIndex> previous = status.redundantIndexes;
+
+    status.redundantIndexes =
+        redundant.stream()
+            .map(
+                p ->
+                    new RedundantIndex(
+                        indexName(p.first),
+                        indexName(p.second),
+                        RedundantIndexes.strictlyCovers(p.second, p.first)))
+            .toList();
+    status.redundantIndexes.stream()
+        .filter(r -> !previous.contains(r))
+        .forEach(
+            r ->
+                LOGGER.warning(
+                    () ->
+                        "Index "
+                            + r.name
+                            + " of collection "
+                            + name
+                            + " is redundant, because it is covered by index "
+                            + r.coveredBy));
+
+    return spec.refuseRedundantIndexes
+        ? redundant.stream()
+            .filter(p -> RedundantIndexes.strictlyCovers(p.second, p.first))
+            .filter(p -> declared.contains(new IndexIdentity(p.second)))
+            .map(
+                p ->
+                    pair(p.first, "Refused, because it is covered by index " + indexName(p.second)))
+            .toList()
+        : list();
+  }
+
+  /**
+   * With several replicas a resource is reconciled by the replica it hashes to, once it has done so
+   * for a lease duration. By then the previous owner has stopped doing DDL for it. A replica that
+   * has a migration for the resource keeps it until the outcome is recorded. The new owner waits
+   * for that as long as the previous one is alive. It checks again at the polling interval, because
+   * status changes don't trigger reconciliations.
+   */
+  private boolean responsible(
+      final MongoCollection resource, final String name, final MongoCollectionStatus status) {
+    if (membership == null || migrations.contains(name)) {
+      return true;
+    }
+
+    final String member = membership.member();
+
+    if (!membership.owns(
+        resource.getMetadata().getNamespace() + "/" + resource.getMetadata().getName())) {
+      return false;
+    }
+
+    if (status.migrating()
+        && status.owner != null
+        && !status.owner.equals(member)
+        && membership.alive(status.owner)) {
+      timerEventSource.scheduleOnce(resource, jitter(indexBuildPollInterval).toMillis());
+      return false;
+    }
+
+    return true;
+  }
+
+  /** When the change stream is open, drift is signalled by it and resyncs are only a safety net. */
+  private Duration resyncInterval() {
+    return changeStream.active() ? changeStreamResyncInterval : resyncInterval;
+  }
+
+  /**
+   * Indexes that are replaced are hidden first when a soak period is set. The method returns <code>
+   * true</code> when the index should be dropped now, which is when the soak period has passed
+   * without the index being needed again.
+   */
+  private boolean retireIndex(
+      final MongoDatabase database,
+      final String collection,
+      final Index index,
+      final long soakSeconds,
+      final MongoCollectionStatus status) {
+    if (soakSeconds <= 0) {
+      return true;
+    }
+
+    return ofNullable(status.soakingIndexes.get(index.options.name))
+        .map(Instant::parse)
+        .map(since -> since.plusSeconds(soakSeconds).isBefore(now()))
+        .orElseGet(
+            () -> {
+              if (!index.options.hidden) {
+                hideIndex(database, collection, index.options.name, status);
+              }
+
+              status.soakingIndexes.put(index.options.name, now().toString());
+
+              return false;
+            });
+  }
+
+  private void runIndexCommand(
+      final String operation,
+      final List<String> names,
+      final Runnable command,
+      final MongoCollectionStatus status) {
+    if (!names.isEmpty()) {
+      try {
+        limits.ddl(command);
+        LOGGER.info(() -> "Index operation " + operation + " succeeded for " + names);
+        names.forEach(n -> status.indexResults.add(new IndexResult(n, operation, null)));
+      } catch (MongoException e) {
+        names.forEach(n -> status.indexResults.add(new IndexResult(n, operation, e.getMessage())));
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * The replacement indexes are built before the ones they replace are dropped. A rebuilt index
+   * can't exist together with its replacement, because they have the same identity. It is dropped
+   * first anyway. A temporary name is used when the new index would get the name of an index that
+   * still exists.
+   */
+  private void swapIndexes(
+      final String name,
+      final IndexPlan plan,
+      final long soakSeconds,
+      final MongoCollectionStatus status) {
+    final List<Index> conflicting = plan.rebuild.stream().map(p -> p.first).toList();
+    final List<Index> create =
+        concat(plan.create.stream(), plan.rebuild.stream().map(p -> p.second)).toList();
+    final Set<String> remaining = plan.drop.stream().map(d -> d.options.name).collect(toSet());
+    final MongoDatabase database = catalog.database();
+
+    dropIndexes(database, name, names(conflicting), status);
+    createIndexes(
+        name,
+        create.stream()
+            .map(
+                i ->
+                    pair(
+                        i,
+                        ofNullable(i.options.name)
+                            .or(() -> Optional.of(defaultName(i.keys)))
+                            .filter(remaining::contains)
+                            .map(n -> n + TEMPORARY_SUFFIX)
+                            .orElse(i.options.name)))
+            .toList(),
+        status);
+    if (create.isEmpty()) {
+      // The old indexes are only retired when the new ones have been built.
+      dropIndexes(
+          database,
+          name,
+          names(
+              plan.drop.stream()
+                  .filter(i -> retireIndex(database, name, i, soakSeconds, status))
+                  .toList()),
+          status);
+    }
+  }
+
+  private boolean verificationDue(final MongoCollectionStatus status) {
+    return ofNullable(status.lastVerified)
+        .map(Instant::parse)
+        .map(l -> l.plus(verificationInterval).isBefore(now()))
+        .orElse(true);
+  }
+
+  /**
+   * Checks if the indexes that were observed after the last reconciliation are still the same and
+   * if the collection options still match the specification. The catalog is used for this, so no
+   * extra round trip is needed when it is warm.
+   */
+  private boolean verify(
+      final String name, final MongoCollectionSpec spec, final MongoCollectionStatus status) {
+    return catalog.exists(name)
+        && Fingerprint.indexes(catalog.indexes(name)).equals(status.indexFingerprint)
+        && catalog
+            .options(name)
+            .map(o -> CollectionOptions.changes(spec, o).isEmpty())
+            .orElse(false);
+  }
 }
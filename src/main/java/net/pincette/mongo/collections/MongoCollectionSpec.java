@@ -2,12 +2,16 @@ package net.pincette.mongo.collections;
 
 import static java.util.Objects.hash;
 import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.toMap;
+import static net.pincette.mongo.collections.IndexIdentity.canonical;
+import static net.pincette.mongo.collections.IndexIdentity.canonicalKeys;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.fabric8.generator.annotation.Required;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 
 public class MongoCollectionSpec {
@@ -29,15 +33,36 @@ public class MongoCollectionSpec {
   @JsonProperty("expireAfterSeconds")
   public long expireAfterSeconds = -1;
 
+  @JsonProperty("hideUnusedIndexesAfterDays")
+  public long hideUnusedIndexesAfterDays = -1;
+
+  @JsonProperty("indexReplacement")
+  public IndexReplacement indexReplacement;
+
+  @JsonProperty("indexSoakSeconds")
+  public long indexSoakSeconds = -1;
+
   @JsonProperty("indexes")
   public List<Index> indexes;
 
+  @JsonProperty("maintenanceWindows")
+  public List<MaintenanceWindow> maintenanceWindows;
+
   @JsonProperty("max")
   public long max = -1;
 
+  @JsonProperty("migration")
+  public Migration migration;
+
   @JsonProperty("name")
   public String name;
 
+  @JsonProperty("refuseRedundantIndexes")
+  public boolean refuseRedundantIndexes;
+
+  @JsonProperty("sharding")
+  public Sharding sharding;
+
   @JsonProperty("size")
   public long size = -1;
 
@@ -164,41 +189,54 @@ public class MongoCollectionSpec {
       return ofNullable(obj)
           .filter(Index.class::isInstance)
           .map(Index.class::cast)
-          .filter(i -> keys.equals(i.keys) && options.equals(i.options))
+          .filter(
+              i -> canonicalKeys(keys).equals(canonicalKeys(i.keys)) && options.equals(i.options))
           .isPresent();
     }
 
     @Override
     public int hashCode() {
-      return hash(keys, options);
+      return hash(canonicalKeys(keys), options);
     }
 
     public static class Key {
       @JsonProperty("direction")
-      @Required
-      public int direction;
+      public int direction = 1;
 
       @JsonProperty("field")
       @Required
       public String field;
 
+      /** When it is set, the direction doesn't matter. */
+      @JsonProperty("type")
+      public KeyType type;
+
       @Override
       public boolean equals(final Object obj) {
         return ofNullable(obj)
             .filter(Key.class::isInstance)
             .map(Key.class::cast)
-            .filter(k -> direction == k.direction && Objects.equals(field, k.field))
+            .filter(
+                k ->
+                    type == k.type
+                        && (type != null || direction == k.direction)
+                        && Objects.equals(field, k.field))
             .isPresent();
       }
 
       @Override
       public int hashCode() {
-        return hash(direction, field);
+        return hash(type == null ? direction : 0, field, type);
       }
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class Options {
+      private static final String DEFAULT_LANGUAGE = "english";
+      private static final String DEFAULT_LANGUAGE_OVERRIDE = "language";
+      private static final int DEFAULT_SPHERE_INDEX_VERSION = 3;
+      private static final int DEFAULT_TEXT_INDEX_VERSION = 3;
+
       @JsonProperty("bits")
       public int bits = -1;
 
@@ -247,9 +285,19 @@ public class MongoCollectionSpec {
       @JsonProperty("wildcardProjection")
       public Map<String, Integer> wildcardProjection;
 
+      private static int version(final int version, final int defaultVersion) {
+        return version != -1 ? version : defaultVersion;
+      }
+
+      private String defaultLanguage() {
+        return ofNullable(defaultLanguage).orElse(DEFAULT_LANGUAGE);
+      }
+
       @Override
       public boolean equals(final Object obj) {
-        // The name does not play a role because it can be generated by MongoDB.
+        // The name does not play a role because it can be generated by MongoDB. The partial
+        // filter is compared by value, regardless of the number types. MongoDB fills in the text
+        // and 2dsphere options that are not given, so their defaults are equal to no value.
         return ofNullable(obj)
             .filter(Options.class::isInstance)
             .map(Options.class::cast)
@@ -258,45 +306,142 @@ public class MongoCollectionSpec {
                     this == o
                         || (bits == o.bits
                             && Objects.equals(collation, o.collation)
-                            && Objects.equals(defaultLanguage, o.defaultLanguage)
+                            && defaultLanguage().equals(o.defaultLanguage())
                             && expireAfterSeconds == o.expireAfterSeconds
                             && hidden == o.hidden
-                            && Objects.equals(languageOverride, o.languageOverride)
+                            && languageOverride().equals(o.languageOverride())
                             && Objects.equals(max, o.max)
                             && Objects.equals(min, o.min)
-                            && Objects.equals(partialFilterExpression, o.partialFilterExpression)
+                            && Objects.equals(
+                                canonical(partialFilterExpression),
+                                canonical(o.partialFilterExpression))
                             && sparse == o.sparse
-                            && sphereIndexVersion == o.sphereIndexVersion
-                            && textIndexVersion == o.textIndexVersion
+                            && sphereIndexVersion() == o.sphereIndexVersion()
+                            && textIndexVersion() == o.textIndexVersion()
                             && unique == o.unique
-                            && Objects.equals(weights, o.weights)
+                            && explicitWeights().equals(o.explicitWeights())
                             && Objects.equals(wildcardProjection, o.wildcardProjection)))
             .isPresent();
       }
 
+      /** The weights of text fields other than 1, which is the default. */
+      private Map<String, Integer> explicitWeights() {
+        return ofNullable(weights).orElseGet(Map::of).entrySet().stream()
+            .filter(e -> e.getValue() != 1)
+            .collect(toMap(Entry::getKey, Entry::getValue));
+      }
+
       @Override
       public int hashCode() {
         return hash(
             bits,
             collation,
-            defaultLanguage,
+            defaultLanguage(),
             expireAfterSeconds,
             hidden,
-            languageOverride,
+            languageOverride(),
             max,
             min,
-            partialFilterExpression,
-            sphereIndexVersion,
+            canonical(partialFilterExpression),
             sparse,
-            textIndexVersion,
+            sphereIndexVersion(),
+            textIndexVersion(),
             unique,
-            weights,
+            explicitWeights(),
             wildcardProjection);
       }
+
+      private String languageOverride() {
+        return ofNullable(languageOverride).orElse(DEFAULT_LANGUAGE_OVERRIDE);
+      }
+
+      /** The version MongoDB gives a 2dsphere index when none is specified. */
+      private int sphereIndexVersion() {
+        return version(sphereIndexVersion, DEFAULT_SPHERE_INDEX_VERSION);
+      }
+
+      /** The version MongoDB gives a text index when none is specified. */
+      private int textIndexVersion() {
+        return version(textIndexVersion, DEFAULT_TEXT_INDEX_VERSION);
+      }
+    }
+  }
+
+  public static class MaintenanceWindow {
+    @JsonProperty("durationMinutes")
+    @Required
+    public int durationMinutes;
+
+    @JsonProperty("schedule")
+    @Required
+    public String schedule;
+
+    @JsonProperty("timeZone")
+    public String timeZone;
+  }
+
+  public static class Migration {
+    @JsonProperty("batchSize")
+    public int batchSize = 1000;
+
+    @JsonProperty("maxDocumentsPerSecond")
+    public long maxDocumentsPerSecond = -1;
+
+    @JsonProperty("parallelism")
+    public int parallelism = 4;
+  }
+
+  public static class Sharding {
+    @JsonProperty("balancing")
+    public boolean balancing = true;
+
+    @JsonProperty("chunkSizeMB")
+    public int chunkSizeMB = -1;
+
+    @JsonProperty("key")
+    @Required
+    public List<Index.Key> key;
+
+    @JsonProperty("numInitialChunks")
+    public int numInitialChunks = -1;
+
+    @JsonProperty("presplitHashedZones")
+    public boolean presplitHashedZones;
+
+    @JsonProperty("splitPoints")
+    public List<Map<String, Object>> splitPoints;
+
+    @JsonProperty("unique")
+    public boolean unique;
+
+    @JsonProperty("zones")
+    public List<Zone> zones;
+
+    public static class Zone {
+      @JsonProperty("max")
+      @Required
+      public Map<String, Object> max;
+
+      @JsonProperty("min")
+      @Required
+      public Map<String, Object> min;
+
+      @JsonProperty("name")
+      @Required
+      public String name;
+
+      @JsonProperty("shards")
+      public List<String> shards;
     }
   }
 
   public static class TimeSeries {
+    @JsonProperty("bucketMaxSpanSeconds")
+    public long bucketMaxSpanSeconds = -1;
+
+    @JsonProperty("bucketRoundingSeconds")
+    public long bucketRoundingSeconds = -1;
+
     @JsonProperty("granularity")
     public Granularity granularity;
 
@@ -306,5 +451,18 @@ public class MongoCollectionSpec {
     @JsonProperty("timeField")
     @Required
     public String timeField;
+
+    /**
+     * The maximum span of the buckets. MongoDB wants it equal to the rounding, so the rounding is
+     * used when only that is given.
+     */
+    long bucketMaxSpan() {
+      return bucketMaxSpanSeconds != -1 ? bucketMaxSpanSeconds : bucketRoundingSeconds;
+    }
+
+    /** The rounding of the buckets, which is the maximum span when only that is given. */
+    long bucketRounding() {
+      return bucketRoundingSeconds != -1 ? bucketRoundingSeconds : bucketMaxSpanSeconds;
+    }
   }
 }
@@ -0,0 +1,362 @@
+package net.pincette.mongo.collections;
+
+import static java.time.Duration.between;
+import static java.time.Instant.now;
+import static java.util.Objects.hash;
+import static java.util.Optional.ofNullable;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+import net.pincette.operator.util.Status;
+
+public class MongoCollectionStatus extends Status {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @JsonProperty("hiddenUnusedIndexes")
+  public List<String> hiddenUnusedIndexes = new ArrayList<>();
+
+  @JsonProperty("indexBuilds")
+  public List<IndexBuild> indexBuilds = new ArrayList<>();
+
+  @JsonProperty("indexBuildsDeferred")
+  public Deferral indexBuildsDeferred;
+
+  @JsonProperty("indexFingerprint")
+  public String indexFingerprint;
+
+  @JsonProperty("indexResults")
+  public List<IndexResult> indexResults = new ArrayList<>();
+
+  @JsonProperty("indexUsage")
+  public List<IndexUsage> indexUsage = new ArrayList<>();
+
+  @JsonProperty("indexUsageCollected")
+  public String indexUsageCollected;
+
+  @JsonProperty("lastVerified")
+  public String lastVerified;
+
+  @JsonProperty("migration")
+  public Migration migration;
+
+  @JsonProperty("owner")
+  public String owner;
+
+  @JsonProperty("redundantIndexes")
+  public List<RedundantIndex> redundantIndexes = new ArrayList<>();
+
+  @JsonProperty("sharding")
+  public Sharding sharding;
+
+  @JsonProperty("soakingIndexes")
+  public Map<String, String> soakingIndexes = new HashMap<>();
+
+  @JsonProperty("specFingerprint")
+  public String specFingerprint;
+
+  private MongoCollectionStatus copyTo(final MongoCollectionStatus status) {
+    status.hiddenUnusedIndexes = hiddenUnusedIndexes;
+    status.indexFingerprint = indexFingerprint;
+    status.indexBuilds = indexBuilds;
+    status.indexBuildsDeferred = indexBuildsDeferred;
+    status.indexResults = indexResults;
+    status.indexUsage = indexUsage;
+    status.indexUsageCollected = indexUsageCollected;
+    status.lastVerified = lastVerified;
+    status.migration = migration;
+    status.owner = owner;
+    status.redundantIndexes = redundantIndexes;
+    status.sharding = sharding;
+    status.soakingIndexes = soakingIndexes;
+    status.specFingerprint = specFingerprint;
+
+    return status;
+  }
+
+  /** Indicates the migration failed for the given generation of the resource. */
+  boolean migrationFailed(final Long generation) {
+    return migration != null
+        && !migration.running
+        && migration.message != null
+        && Objects.equals(migration.generation, generation);
+  }
+
+  /** Indicates a migration of the collection is running. */
+  boolean migrating() {
+    return migration != null && migration.running;
+  }
+
+  /** Indicates there is work in progress that needs to be followed up. */
+  boolean pending() {
+    return !indexBuilds.isEmpty()
+        || indexBuildsDeferred != null
+        || !soakingIndexes.isEmpty()
+        || migrating();
+  }
+
+  /** Applies a change that is defined on the generic status and keeps the fields of this class. */
+  MongoCollectionStatus with(final UnaryOperator<Status> change) {
+    final Status status = change.apply(this);
+
+    return status instanceof MongoCollectionStatus s
+        ? s
+        : copyTo(MAPPER.convertValue(status, MongoCollectionStatus.class));
+  }
+
+  public static class Deferral {
+    @JsonProperty("message")
+    public String message;
+
+    @JsonProperty("names")
+    public List<String> names = new ArrayList<>();
+
+    @JsonProperty("reason")
+    public String reason;
+
+    @JsonProperty("since")
+    public String since;
+
+    public Deferral() {}
+
+    Deferral(final String reason, final String message, final List<String> names) {
+      this.message = message;
+      this.names = names;
+      this.reason = reason;
+      this.since = now().toString();
+    }
+  }
+
+  public static class IndexBuild {
+    @JsonProperty("done")
+    public long done = -1;
+
+    @JsonProperty("eta")
+    public String eta;
+
+    @JsonProperty("names")
+    public List<String> names;
+
+    @JsonProperty("percentage")
+    public Double percentage;
+
+    @JsonProperty("phase")
+    public String phase;
+
+    @JsonProperty("started")
+    public String started;
+
+    @JsonProperty("total")
+    public long total = -1;
+
+    public IndexBuild() {}
+
+    IndexBuild(
+        final List<String> names,
+        final String phase,
+        final Instant started,
+        final long done,
+        final long total) {
+      this.done = done;
+      this.names = names;
+      this.phase = phase;
+      this.started = started.toString();
+      this.total = total;
+
+      if (done > 0 && total > 0) {
+        final long elapsed = between(started, now()).toMillis();
+
+        percentage = Math.min(100.0, 100.0 * done / total);
+        eta = now().plusMillis(elapsed * (total - done) / done).toString();
+      }
+    }
+  }
+
+  public static class IndexResult {
+    @JsonProperty("message")
+    public String message;
+
+    @JsonProperty("name")
+    public String name;
+
+    @JsonProperty("operation")
+    public String operation;
+
+    @JsonProperty("succeeded")
+    public boolean succeeded;
+
+    @JsonProperty("time")
+    public String time;
+
+    public IndexResult() {}
+
+    IndexResult(final String name, final String operation, final String message) {
+      this.message = message;
+      this.name = name;
+      this.operation = operation;
+      this.succeeded = message == null;
+      this.time = now().toString();
+    }
+  }
+
+  public static class IndexUsage {
+    @JsonProperty("lastUsed")
+    public String lastUsed;
+
+    @JsonProperty("members")
+    public Map<String, MemberUsage> members = new HashMap<>();
+
+    @JsonProperty("name")
+    public String name;
+
+    @JsonProperty("observedSince")
+    public String observedSince;
+
+    @JsonProperty("ops")
+    public long ops;
+
+    public IndexUsage() {}
+
+    IndexUsage(final String name, final Instant observedSince) {
+      this.name = name;
+      this.observedSince = observedSince.toString();
+    }
+
+    /** The index wasn't used after the given moment, as far as has been observed. */
+    boolean unusedSince(final Instant moment) {
+      return Instant.parse(lastUsed != null ? lastUsed : observedSince).isBefore(moment);
+    }
+  }
+
+  public static class MemberUsage {
+    @JsonProperty("ops")
+    public long ops;
+
+    @JsonProperty("since")
+    public String since;
+
+    public MemberUsage() {}
+
+    MemberUsage(final long ops, final String since) {
+      this.ops = ops;
+      this.since = since;
+    }
+  }
+
+  public static class Migration {
+    @JsonProperty("copied")
+    public long copied;
+
+    @JsonProperty("documentsPerSecond")
+    public long documentsPerSecond;
+
+    @JsonProperty("generation")
+    public Long generation;
+
+    @JsonProperty("message")
+    public String message;
+
+    @JsonProperty("percentage")
+    public Double percentage;
+
+    @JsonProperty("phase")
+    public String phase;
+
+    @JsonProperty("running")
+    public boolean running;
+
+    @JsonProperty("started")
+    public String started;
+
+    @JsonProperty("total")
+    public long total = -1;
+
+    public Migration() {}
+
+    Migration(
+        final String phase,
+        final boolean running,
+        final Instant started,
+        final long copied,
+        final long total,
+        final String message,
+        final Long generation) {
+      this.copied = copied;
+      this.generation = generation;
+      this.message = message;
+      this.phase = phase;
+      this.running = running;
+      this.started = started.toString();
+      this.total = total;
+
+      final long elapsed = between(started, now()).toSeconds();
+
+      documentsPerSecond = elapsed > 0 ? copied / elapsed : copied;
+
+      if (total > 0) {
+        percentage = Math.min(100.0, 100.0 * copied / total);
+      }
+    }
+  }
+
+  public static class RedundantIndex {
+    @JsonProperty("coveredBy")
+    public String coveredBy;
+
+    @JsonProperty("name")
+    public String name;
+
+    @JsonProperty("strict")
+    public boolean strict;
+
+    public RedundantIndex() {}
+
+    RedundantIndex(final String name, final String coveredBy, final boolean strict) {
+      this.coveredBy = coveredBy;
+      this.name = name;
+      this.strict = strict;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return ofNullable(obj)
+          .filter(RedundantIndex.class::isInstance)
+          .map(RedundantIndex.class::cast)
+          .filter(
+              r ->
+                  strict == r.strict
+                      && Objects.equals(coveredBy, r.coveredBy)
+                      && Objects.equals(name, r.name))
+          .isPresent();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash(coveredBy, name, strict);
+    }
+  }
+
+  public static class Sharding {
+    @JsonProperty("balancing")
+    public boolean balancing;
+
+    @JsonProperty("chunks")
+    public Map<String, Long> chunks = new TreeMap<>();
+
+    @JsonProperty("key")
+    public String key;
+
+    @JsonProperty("message")
+    public String message;
+
+    @JsonProperty("sharded")
+    public boolean sharded;
+  }
+}
@@ -0,0 +1,99 @@
+package net.pincette.mongo.collections;
+
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.IntStream.range;
+import static java.util.stream.Stream.concat;
+import static net.pincette.mongo.collections.IndexIdentity.canonical;
+import static net.pincette.util.Pair.pair;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+import net.pincette.util.Pair;
+
+/**
+ * Finds indexes that other indexes make unnecessary. An index is covered by another one when its
+ * keys are a prefix of the keys of the other, either all in the same or all in the opposite
+ * direction, and the other index contains at least the same documents in the same order. This means
+ * it has the same collation, it isn't sparse when the first one isn't, and it has either no partial
+ * filter or the same one. Unique and TTL indexes are never redundant, because they do more than
+ * speed up queries. A hidden index doesn't cover anything. Only ascending and descending keys can
+ * be covered. Text, geospatial and wildcard indexes don't have all the documents, so they don't
+ * cover anything either.
+ */
+class RedundantIndexes {
+  private static final String WILDCARD = "$**";
+
+  private RedundantIndexes() {}
+
+  /** Indicates whether <code>other</code> can do everything <code>index</code> does. */
+  static boolean covers(final Index other, final Index index) {
+    return other != index
+        && !other.options.hidden
+        && !index.options.unique
+        && index.options.expireAfterSeconds == -1
+        && prefix(index.keys, other.keys)
+        && Objects.equals(index.options.collation, other.options.collation)
+        && (other.options.partialFilterExpression == null
+            || Objects.equals(
+                canonical(index.options.partialFilterExpression),
+                canonical(other.options.partialFilterExpression)))
+        && (!other.options.sparse || index.options.sparse);
+  }
+
+  /**
+   * Returns the redundant indexes, each with an index that covers it. When two indexes cover each
+   * other, only the one that comes last in the list is returned.
+   */
+  static List<Pair<Index, Index>> find(final List<Index> indexes) {
+    return range(0, indexes.size())
+        .boxed()
+        .flatMap(
+            i ->
+                range(0, indexes.size())
+                    .filter(j -> j != i)
+                    .filter(j -> covers(indexes.get(j), indexes.get(i)))
+                    .filter(j -> j < i || !covers(indexes.get(i), indexes.get(j)))
+                    .mapToObj(j -> pair(indexes.get(i), indexes.get(j)))
+                    .limit(1))
+        .toList();
+  }
+
+  /**
+   * Returns the redundant indexes among the desired ones together with the found ones that aren't
+   * desired. A found index can also cover a desired one. The desired indexes come first, so they
+   * are preferred as the covering index.
+   */
+  static List<Pair<Index, Index>> find(final List<Index> desired, final List<Index> found) {
+    final Set<IndexIdentity> declared = desired.stream().map(IndexIdentity::new).collect(toSet());
+
+    return find(
+        concat(
+                desired.stream(),
+                found.stream().filter(i -> !declared.contains(new IndexIdentity(i))))
+            .toList());
+  }
+
+  private static boolean ordinary(final Key key) {
+    return key.type == null && !key.field.endsWith(WILDCARD);
+  }
+
+  private static boolean prefix(final List<Key> keys, final List<Key> other) {
+    return keys.size() <= other.size()
+        && keys.stream().allMatch(RedundantIndexes::ordinary)
+        && other.stream().allMatch(k -> ordinary(k) || k.type == KeyType.hashed)
+        && range(0, keys.size())
+            .allMatch(
+                i -> other.get(i).type == null && keys.get(i).field.equals(other.get(i).field))
+        && (range(0, keys.size()).allMatch(i -> keys.get(i).direction == other.get(i).direction)
+            || range(0, keys.size())
+                .allMatch(i -> keys.get(i).direction == -other.get(i).direction));
+  }
+
+  /** Indicates whether <code>index</code> is covered by <code>other</code>, but not the reverse. */
+  static boolean strictlyCovers(final Index other, final Index index) {
+    return covers(other, index) && !covers(index, other);
+  }
+}
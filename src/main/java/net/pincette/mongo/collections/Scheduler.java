@@ -0,0 +1,75 @@
+package net.pincette.mongo.collections;
+
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+import static java.time.Duration.ofMillis;
+import static java.util.concurrent.ThreadLocalRandom.current;
+
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calculates when a resource should be reconciled again. All delays get a random jitter, so
+ * resources that were reconciled together drift apart. Failures are retried with exponential
+ * backoff. A resource that stays unchanged is checked less often, up to a multiple of the normal
+ * interval. A change brings it back to the normal interval.
+ */
+class Scheduler {
+  private static final double JITTER = 0.2;
+  private static final int MAX_BACKOFF_SHIFT = 20;
+  private static final int MAX_STABLE_SHIFT = 3;
+
+  private final Duration errorInterval;
+  private final Duration maxErrorInterval;
+  private final Map<ResourceID, State> states = new ConcurrentHashMap<>();
+
+  Scheduler(final Duration errorInterval, final Duration maxErrorInterval) {
+    this.errorInterval = errorInterval;
+    this.maxErrorInterval = maxErrorInterval;
+  }
+
+  static Duration jitter(final Duration delay) {
+    return ofMillis(round(delay.toMillis() * (1 - JITTER + 2 * JITTER * current().nextDouble())));
+  }
+
+  Duration failed(final ResourceID resource) {
+    final State state = state(resource);
+
+    state.stable = 0;
+    ++state.failures;
+
+    final Duration backoff =
+        errorInterval.multipliedBy(1L << min(state.failures - 1, MAX_BACKOFF_SHIFT));
+
+    return jitter(backoff.compareTo(maxErrorInterval) > 0 ? maxErrorInterval : backoff);
+  }
+
+  /** Forgets the resource when it is deleted. */
+  void remove(final ResourceID resource) {
+    states.remove(resource);
+  }
+
+  private State state(final ResourceID resource) {
+    return states.computeIfAbsent(resource, r -> new State());
+  }
+
+  /**
+   * Returns the delay after a successful reconciliation. The <code>interval</code> is the normal
+   * one and <code>changed</code> tells if anything had to be done.
+   */
+  Duration succeeded(final ResourceID resource, final Duration interval, final boolean changed) {
+    final State state = state(resource);
+
+    state.failures = 0;
+    state.stable = changed ? 0 : state.stable + 1;
+
+    return jitter(interval.multipliedBy(1L << min(state.stable, MAX_STABLE_SHIFT)));
+  }
+
+  private static class State {
+    private int failures;
+    private int stable;
+  }
+}
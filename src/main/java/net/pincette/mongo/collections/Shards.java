@@ -0,0 +1,321 @@
+package net.pincette.mongo.collections;
+
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.or;
+import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static net.pincette.mongo.collections.Application.LOGGER;
+import static net.pincette.mongo.collections.BsonValues.toBson;
+import static net.pincette.mongo.collections.IndexCodec.keyPattern;
+import static net.pincette.mongo.collections.IndexIdentity.canonical;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.StreamUtil.stream;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+import net.pincette.mongo.collections.MongoCollectionSpec.Sharding;
+import net.pincette.mongo.collections.MongoCollectionSpec.Sharding.Zone;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.Document;
+
+/**
+ * Shards collections through <code>mongos</code>. The zones and their ranges are set before the
+ * collection is sharded, so a hashed shard key can be presplit over them. Split points are only
+ * applied right after sharding, when the collection is still empty. A shard key can be refined with
+ * extra fields. Other changes to it are reported, but not applied, because resharding rewrites the
+ * whole collection. The state of the sharding, with the number of chunks per shard, is read from
+ * the config database.
+ */
+class Shards {
+  private static final String ADD_SHARD_TO_ZONE = "addShardToZone";
+  private static final String ADMIN = "admin";
+  private static final String CHUNK_SIZE = "chunkSize";
+  private static final String CHUNKS = "chunks";
+  private static final String COLLECTIONS = "collections";
+  private static final String CONFIG = "config";
+  private static final String CONFIGURE_COLLECTION_BALANCING = "configureCollectionBalancing";
+  private static final String COUNT = "count";
+  private static final String DROPPED = "dropped";
+  private static final String ENABLE_BALANCING = "enableBalancing";
+  private static final String HELLO = "hello";
+  private static final String ID = "_id";
+  private static final String ISDBGRID = "isdbgrid";
+  private static final String KEY = "key";
+  private static final String MAX = "max";
+  private static final String MAX_CHUNK_SIZE_BYTES = "maxChunkSizeBytes";
+  private static final String MIDDLE = "middle";
+  private static final String MIN = "min";
+  private static final String MSG = "msg";
+  private static final String NO_BALANCE = "noBalance";
+  private static final String NS = "ns";
+  private static final String NUM_INITIAL_CHUNKS = "numInitialChunks";
+  private static final String PRESPLIT_HASHED_ZONES = "presplitHashedZones";
+  private static final String REFINE_COLLECTION_SHARD_KEY = "refineCollectionShardKey";
+  private static final String SHARD = "shard";
+  private static final String SHARD_COLLECTION = "shardCollection";
+  private static final String SHARDS = "shards";
+  private static final String SPLIT = "split";
+  private static final String TAG = "tag";
+  private static final String TAGS = "tags";
+  private static final String UNIQUE = "unique";
+  private static final String UPDATE_ZONE_KEY_RANGE = "updateZoneKeyRange";
+  private static final String UUID = "uuid";
+  private static final String ZONE = "zone";
+
+  private final MongoDatabase admin;
+  private final MongoDatabase config;
+  private final String database;
+  private final Limits limits;
+  private Boolean router;
+
+  Shards(final MongoClient client, final String database, final Limits limits) {
+    this.admin = client.getDatabase(ADMIN);
+    this.config = client.getDatabase(CONFIG);
+    this.database = database;
+    this.limits = limits;
+  }
+
+  private static boolean refines(final List<Key> current, final List<Key> desired) {
+    return desired.size() > current.size()
+        && IntStream.range(0, current.size()).allMatch(i -> current.get(i).equals(desired.get(i)));
+  }
+
+  private static boolean sameRange(final Document range, final Zone zone) {
+    return zone.name.equals(range.getString(TAG))
+        && Objects.equals(canonical(range.get(MIN)), canonical(zone.min))
+        && Objects.equals(canonical(range.get(MAX)), canonical(zone.max));
+  }
+
+  /**
+   * Sets the balancing and the chunk size of the collection with one <code>
+   * configureCollectionBalancing</code> command, when one of them differs from the current state.
+   */
+  private void balancing(final String namespace, final Sharding sharding, final Document current) {
+    final Document command = new Document(CONFIGURE_COLLECTION_BALANCING, namespace);
+
+    if (sharding.balancing == current.getBoolean(NO_BALANCE, false)) {
+      LOGGER.info(() -> "Set balancing of " + namespace + " to " + sharding.balancing);
+      command.append(ENABLE_BALANCING, sharding.balancing);
+    }
+
+    if (sharding.chunkSizeMB != -1
+        && (long) sharding.chunkSizeMB * 1024 * 1024
+            != ofNullable(current.get(MAX_CHUNK_SIZE_BYTES, Number.class))
+                .map(Number::longValue)
+                .orElse(-1L)) {
+      LOGGER.info(() -> "Set the chunk size of " + namespace + " to " + sharding.chunkSizeMB);
+      command.append(CHUNK_SIZE, sharding.chunkSizeMB);
+    }
+
+    if (command.size() > 1) {
+      command(command);
+    }
+  }
+
+  private Map<String, Long> chunks(final String namespace, final Document collection) {
+    return limits.read(
+        () ->
+            stream(
+                    config
+                        .getCollection(CHUNKS)
+                        .aggregate(
+                            list(
+                                match(
+                                    // Before MongoDB 5.0 the chunks refer to the namespace.
+                                    or(eq(UUID, collection.get(UUID)), eq(NS, namespace))),
+                                group("$" + SHARD, Accumulators.sum(COUNT, 1))))
+                        .iterator())
+                .collect(
+                    toMap(
+                        d -> d.getString(ID),
+                        d -> d.get(COUNT, Number.class).longValue(),
+                        Long::sum,
+                        TreeMap::new)));
+  }
+
+  private void command(final Document command) {
+    limits.ddl(() -> admin.runCommand(command));
+  }
+
+  /** Returns the entry of the collection in the config database if it is sharded. */
+  private Optional<Document> current(final String namespace) {
+    return ofNullable(
+            limits.read(() -> config.getCollection(COLLECTIONS).find(eq(ID, namespace)).first()))
+        .filter(c -> !c.getBoolean(DROPPED, false));
+  }
+
+  private String namespace(final String collection) {
+    return database + "." + collection;
+  }
+
+  /**
+   * Applies the sharding of the specification to the collection and records its state in the
+   * status. A collection that is sharded already stays that way when the specification no longer
+   * has sharding.
+   */
+  void reconcile(
+      final String collection, final Sharding sharding, final MongoCollectionStatus status) {
+    if (sharding == null || !router()) {
+      update(collection, sharding, status);
+      return;
+    }
+
+    final String namespace = namespace(collection);
+
+    zones(namespace, sharding);
+
+    final Optional<Document> current = current(namespace);
+
+    if (current.isEmpty()) {
+      shard(namespace, sharding);
+    } else if (refines(
+        IndexCodec.keys(current.get().get(KEY, Document.class).toBsonDocument()), sharding.key)) {
+      LOGGER.info(() -> "Refine the shard key of " + namespace);
+      command(
+          new Document(REFINE_COLLECTION_SHARD_KEY, namespace)
+              .append(KEY, keyPattern(sharding.key)));
+    }
+
+    current(namespace).ifPresent(c -> balancing(namespace, sharding, c));
+    update(collection, sharding, status);
+  }
+
+  /** Indicates whether the operator is connected to <code>mongos</code>. */
+  private boolean router() {
+    if (router == null) {
+      router =
+          ISDBGRID.equals(limits.read(() -> admin.runCommand(new Document(HELLO, 1))).get(MSG));
+    }
+
+    return router;
+  }
+
+  private void shard(final String namespace, final Sharding sharding) {
+    final Document command =
+        new Document(SHARD_COLLECTION, namespace).append(KEY, keyPattern(sharding.key));
+
+    if (sharding.unique) {
+      command.append(UNIQUE, true);
+    }
+
+    if (sharding.numInitialChunks != -1) {
+      command.append(NUM_INITIAL_CHUNKS, sharding.numInitialChunks);
+    }
+
+    if (sharding.presplitHashedZones) {
+      command.append(PRESPLIT_HASHED_ZONES, true);
+    }
+
+    LOGGER.info(() -> "Shard " + namespace + " with " + command.toJson());
+    command(command);
+    ofNullable(sharding.splitPoints).stream()
+        .flatMap(List::stream)
+        .forEach(p -> command(new Document(SPLIT, namespace).append(MIDDLE, toBson(p))));
+  }
+
+  /** Returns the zones the shards are in now, per shard. */
+  private Map<String, Set<String>> shardZones(final Set<String> shards) {
+    return limits.read(
+        () ->
+            stream(config.getCollection(SHARDS).find(in(ID, shards)).iterator())
+                .collect(
+                    toMap(
+                        d -> d.getString(ID),
+                        d ->
+                            ofNullable(d.getList(TAGS, String.class)).stream()
+                                .flatMap(List::stream)
+                                .collect(toSet()))));
+  }
+
+  /** Records the state of the sharding of the collection in the status. */
+  void update(
+      final String collection, final Sharding sharding, final MongoCollectionStatus status) {
+    if (sharding == null) {
+      status.sharding = null;
+      return;
+    }
+
+    final MongoCollectionStatus.Sharding state = new MongoCollectionStatus.Sharding();
+
+    if (!router()) {
+      state.message = "The operator isn't connected to mongos";
+    } else {
+      final String namespace = namespace(collection);
+
+      current(namespace)
+          .ifPresent(
+              c -> {
+                final BsonDocument key = c.get(KEY, Document.class).toBsonDocument();
+
+                state.balancing = !c.getBoolean(NO_BALANCE, false);
+                state.chunks = chunks(namespace, c);
+                state.key = key.toJson();
+                state.sharded = true;
+
+                if (!IndexCodec.keys(key).equals(sharding.key)) {
+                  state.message =
+                      "The shard key "
+                          + keyPattern(sharding.key).toJson()
+                          + " can't replace the current one without resharding";
+                }
+              });
+    }
+
+    status.sharding = state;
+  }
+
+  /**
+   * Assigns the shards to the zones and sets the ranges of the zones. Only the shards that aren't
+   * in their zone yet are added to it. Ranges that are no longer in the specification are removed.
+   */
+  private void zones(final String namespace, final Sharding sharding) {
+    final List<Zone> zones = ofNullable(sharding.zones).orElseGet(List::of);
+    final List<Document> ranges =
+        limits.read(
+            () -> stream(config.getCollection(TAGS).find(eq(NS, namespace)).iterator()).toList());
+    final Set<String> shards =
+        zones.stream()
+            .flatMap(z -> ofNullable(z.shards).stream().flatMap(List::stream))
+            .collect(toSet());
+    final Map<String, Set<String>> current = shards.isEmpty() ? Map.of() : shardZones(shards);
+
+    zones.forEach(
+        z ->
+            ofNullable(z.shards).stream()
+                .flatMap(List::stream)
+                .filter(s -> !current.getOrDefault(s, Set.of()).contains(z.name))
+                .forEach(s -> command(new Document(ADD_SHARD_TO_ZONE, s).append(ZONE, z.name))));
+    ranges.stream()
+        .filter(r -> zones.stream().noneMatch(z -> sameRange(r, z)))
+        .forEach(
+            r ->
+                command(
+                    new Document(UPDATE_ZONE_KEY_RANGE, namespace)
+                        .append(MIN, r.get(MIN))
+                        .append(MAX, r.get(MAX))
+                        .append(ZONE, BsonNull.VALUE)));
+    zones.stream()
+        .filter(z -> ranges.stream().noneMatch(r -> sameRange(r, z)))
+        .forEach(
+            z ->
+                command(
+                    new Document(UPDATE_ZONE_KEY_RANGE, namespace)
+                        .append(MIN, toBson(z.min))
+                        .append(MAX, toBson(z.max))
+                        .append(ZONE, z.name)));
+  }
+}
@@ -0,0 +1,82 @@
+package net.pincette.mongo.collections;
+
+import static java.util.Optional.ofNullable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+import net.pincette.mongo.collections.MongoCollectionSpec.TimeSeries;
+
+/**
+ * Checks the secondary indexes of a time-series collection against what MongoDB supports for them.
+ * Indexes on subfields of the <code>metaField</code> are treated like those on the field itself.
+ * Hashed and wildcard keys are only possible on the <code>metaField</code>. A TTL index needs a
+ * partial filter that only uses the <code>metaField</code>. Unique, text and 2d indexes are not
+ * possible.
+ */
+class TimeSeriesIndexes {
+  private static final String WILDCARD = "$**";
+
+  private TimeSeriesIndexes() {}
+
+  private static Stream<String> fields(final Object filter) {
+    if (filter instanceof Map<?, ?> map) {
+      return map.entrySet().stream()
+          .flatMap(
+              e ->
+                  e.getKey().toString().startsWith("$")
+                      ? fields(e.getValue())
+                      : Stream.of(e.getKey().toString()));
+    }
+
+    return filter instanceof Collection<?> collection
+        ? collection.stream().flatMap(TimeSeriesIndexes::fields)
+        : Stream.empty();
+  }
+
+  private static boolean onMetaField(final String field, final TimeSeries timeSeries) {
+    return timeSeries.metaField != null
+        && (field.equals(timeSeries.metaField) || field.startsWith(timeSeries.metaField + "."));
+  }
+
+  /** Returns why the index isn't possible on the time-series collection, if that is the case. */
+  static Optional<String> problem(final Index index, final TimeSeries timeSeries) {
+    final List<Key> keys = index.keys;
+
+    if (index.options.unique) {
+      return Optional.of("Time-series collections can't have unique indexes");
+    }
+
+    if (keys.stream().anyMatch(k -> k.type == KeyType.text || k.type == KeyType.geo2d)) {
+      return Optional.of("Time-series collections can't have text or 2d indexes");
+    }
+
+    if (keys.stream()
+        .filter(k -> k.type == KeyType.hashed || k.field.endsWith(WILDCARD))
+        .anyMatch(k -> !onMetaField(withoutWildcard(k.field), timeSeries))) {
+      return Optional.of(
+          "Hashed and wildcard keys of time-series collections must be on the metaField");
+    }
+
+    if (index.options.expireAfterSeconds != -1
+        && ofNullable(index.options.partialFilterExpression)
+            .filter(f -> fields(f).allMatch(field -> onMetaField(field, timeSeries)))
+            .filter(f -> !f.isEmpty())
+            .isEmpty()) {
+      return Optional.of(
+          "A TTL index of a time-series collection needs a partial filter on the metaField");
+    }
+
+    return Optional.empty();
+  }
+
+  private static String withoutWildcard(final String field) {
+    return field.endsWith("." + WILDCARD)
+        ? field.substring(0, field.length() - WILDCARD.length() - 1)
+        : field;
+  }
+}
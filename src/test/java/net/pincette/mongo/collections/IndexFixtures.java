@@ -0,0 +1,43 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.util.Collections.list;
+
+import java.util.List;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
+import net.pincette.util.Pair;
+
+/** Builds the indexes the tests work with. */
+class IndexFixtures {
+  private IndexFixtures() {}
+
+  /** An index with ascending and descending keys, given as pairs of a field and a direction. */
+  static Index index(final String name, final List<Pair<String, Integer>> keys) {
+    final Index index = new Index();
+
+    index.options.name = name;
+    index.keys = keys.stream().map(p -> key(p.first, p.second, null)).toList();
+
+    return index;
+  }
+
+  static Key key(final String field, final int direction, final KeyType type) {
+    final Key key = new Key();
+
+    key.field = field;
+    key.direction = direction;
+    key.type = type;
+
+    return key;
+  }
+
+  /** An index with only text keys. */
+  static Index text(final String name, final String... fields) {
+    final Index index = new Index();
+
+    index.options.name = name;
+    index.keys = list(fields).stream().map(f -> key(f, 1, KeyType.text)).toList();
+
+    return index;
+  }
+}
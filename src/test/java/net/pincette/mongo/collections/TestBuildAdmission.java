@@ -0,0 +1,115 @@
+package net.pincette.mongo.collections;
+
+import static java.time.Duration.ofSeconds;
+import static java.util.Optional.empty;
+import static net.pincette.mongo.collections.BuildAdmission.open;
+import static net.pincette.mongo.collections.BuildAdmission.replicationLag;
+import static net.pincette.util.Collections.list;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+import net.pincette.mongo.collections.MongoCollectionSpec.MaintenanceWindow;
+import org.bson.Document;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestBuildAdmission {
+  private static Document member(final int id, final int state, final String optime) {
+    return new Document("_id", id)
+        .append("state", state)
+        .append("optimeDate", Date.from(Instant.parse(optime)));
+  }
+
+  private static Document status() {
+    return new Document(
+        "members",
+        list(
+            member(0, 1, "2024-01-01T00:10:00Z"),
+            member(1, 2, "2024-01-01T00:09:50Z"),
+            member(2, 2, "2024-01-01T00:00:00Z"),
+            member(3, 2, "2024-01-01T00:05:00Z")));
+  }
+
+  private static MaintenanceWindow window(
+      final String schedule, final int durationMinutes, final String timeZone) {
+    final MaintenanceWindow window = new MaintenanceWindow();
+
+    window.schedule = schedule;
+    window.durationMinutes = durationMinutes;
+    window.timeZone = timeZone;
+
+    return window;
+  }
+
+  @Test
+  @DisplayName("over midnight")
+  void overMidnight() {
+    final MaintenanceWindow window = window("30 23 * * *", 90, null);
+
+    assertTrue(open(list(window), Instant.parse("2024-01-01T23:30:00Z")));
+    assertTrue(open(list(window), Instant.parse("2024-01-02T00:59:59Z")));
+    assertFalse(open(list(window), Instant.parse("2024-01-02T01:00:00Z")));
+    assertFalse(open(list(window), Instant.parse("2024-01-01T23:29:59Z")));
+  }
+
+  @Test
+  @DisplayName("replication lag")
+  void replicationLagAll() {
+    assertEquals(Optional.of(ofSeconds(600)), replicationLag(status(), new Document()));
+    assertEquals(empty(), replicationLag(new Document(), new Document()));
+  }
+
+  @Test
+  @DisplayName("replication lag without hidden and delayed members")
+  void replicationLagHiddenDelayed() {
+    final Document config =
+        new Document(
+            "config",
+            new Document(
+                "members",
+                list(
+                    new Document("_id", 0),
+                    new Document("_id", 1),
+                    new Document("_id", 2).append("secondaryDelaySecs", 3600),
+                    new Document("_id", 3).append("hidden", true).append("priority", 0))));
+
+    assertEquals(Optional.of(ofSeconds(10)), replicationLag(status(), config));
+  }
+
+  @Test
+  @DisplayName("several windows")
+  void severalWindows() {
+    final MaintenanceWindow night = window("0 2 * * *", 60, null);
+    final MaintenanceWindow weekend = window("0 12 * * 6,0", 120, null);
+
+    assertTrue(open(list(night, weekend), Instant.parse("2024-01-01T02:10:00Z")));
+    assertTrue(open(list(night, weekend), Instant.parse("2024-01-06T13:10:00Z")));
+    assertFalse(open(list(night, weekend), Instant.parse("2024-01-01T13:10:00Z")));
+    assertFalse(open(list(), Instant.parse("2024-01-01T02:10:00Z")));
+  }
+
+  @Test
+  @DisplayName("time zone")
+  void timeZone() {
+    final MaintenanceWindow window = window("0 2 * * *", 60, "Europe/Brussels");
+
+    assertTrue(open(list(window), Instant.parse("2024-01-01T01:30:00Z")));
+    assertFalse(open(list(window), Instant.parse("2024-01-01T02:30:00Z")));
+    assertTrue(open(list(window), Instant.parse("2024-07-01T00:30:00Z")));
+  }
+
+  @Test
+  @DisplayName("window end")
+  void windowEnd() {
+    final MaintenanceWindow window = window("0 2 * * *", 60, null);
+
+    assertFalse(open(list(window), Instant.parse("2024-01-01T01:59:59Z")));
+    assertTrue(open(list(window), Instant.parse("2024-01-01T02:00:00Z")));
+    assertTrue(open(list(window), Instant.parse("2024-01-01T02:59:59Z")));
+    assertFalse(open(list(window), Instant.parse("2024-01-01T03:00:00Z")));
+  }
+}
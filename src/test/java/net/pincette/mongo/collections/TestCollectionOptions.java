@@ -0,0 +1,49 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.CollectionOptions.changes;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.Document;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestCollectionOptions {
+  private static Document options(final String json) {
+    // This is how listCollections reports the options, with dates and object IDs as BSON values.
+    return Document.parse(json);
+  }
+
+  @Test
+  @DisplayName("validator")
+  void validator() {
+    final MongoCollectionSpec spec = new MongoCollectionSpec();
+
+    spec.validator =
+        map(
+            pair("created", map(pair("$gte", "2024-01-01T00:00:00Z"))),
+            pair("_id", map(pair("$ne", "65a1b2c3d4e5f60718293a4b"))),
+            pair("count", map(pair("$lt", 10))));
+
+    assertTrue(
+        changes(
+                spec,
+                options(
+                    "{validator: {created: {$gte: {$date: '2024-01-01T00:00:00Z'}}, "
+                        + "_id: {$ne: {$oid: '65a1b2c3d4e5f60718293a4b'}}, "
+                        + "count: {$lt: {$numberLong: '10'}}}}"))
+            .isEmpty());
+    assertEquals(
+        1,
+        changes(
+                spec,
+                options(
+                    "{validator: {created: {$gte: {$date: '2024-02-01T00:00:00Z'}}, "
+                        + "_id: {$ne: {$oid: '65a1b2c3d4e5f60718293a4b'}}, "
+                        + "count: {$lt: 10}}}"))
+            .size());
+    assertEquals(1, changes(spec, options("{}")).size());
+  }
+}
@@ -0,0 +1,82 @@
+package net.pincette.mongo.collections;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZonedDateTime;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestCron {
+  private static boolean matches(final String expression, final String time) {
+    return Cron.parse(expression).matches(ZonedDateTime.parse(time).withZoneSameInstant(UTC));
+  }
+
+  @Test
+  @DisplayName("day of the month and day of the week")
+  void days() {
+    // 2024-01-01 is a Monday and 2024-01-07 a Sunday.
+    assertTrue(matches("0 0 1 * 1", "2024-01-01T00:00:00Z"));
+    assertTrue(matches("0 0 1 * 0", "2024-01-01T00:00:00Z"));
+    assertTrue(matches("0 0 15 * 0", "2024-01-07T00:00:00Z"));
+    assertFalse(matches("0 0 15 * 0", "2024-01-08T00:00:00Z"));
+    assertTrue(matches("0 0 * * 1", "2024-01-08T00:00:00Z"));
+    assertFalse(matches("0 0 * * 1", "2024-01-07T00:00:00Z"));
+    assertTrue(matches("0 0 7 * *", "2024-01-07T00:00:00Z"));
+    assertFalse(matches("0 0 8 * *", "2024-01-07T00:00:00Z"));
+  }
+
+  @Test
+  @DisplayName("invalid expressions")
+  void invalid() {
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("0 0 * *"));
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("60 0 * * *"));
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("0 0 0 * *"));
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("0 5-2 * * *"));
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("*/0 0 * * *"));
+    assertThrows(IllegalArgumentException.class, () -> Cron.parse("0 0 * 13 *"));
+  }
+
+  @Test
+  @DisplayName("lists")
+  void lists() {
+    assertTrue(matches("0,30 1-3,22 * * *", "2024-01-01T22:30:00Z"));
+    assertTrue(matches("0,30 1-3,22 * * *", "2024-01-01T02:00:00Z"));
+    assertFalse(matches("0,30 1-3,22 * * *", "2024-01-01T04:00:00Z"));
+    assertFalse(matches("0,30 1-3,22 * * *", "2024-01-01T02:15:00Z"));
+  }
+
+  @Test
+  @DisplayName("ranges")
+  void ranges() {
+    assertTrue(matches("0 9-17 * * 1-5", "2024-01-01T09:00:00Z"));
+    assertTrue(matches("0 9-17 * * 1-5", "2024-01-01T17:00:00Z"));
+    assertFalse(matches("0 9-17 * * 1-5", "2024-01-01T18:00:00Z"));
+    assertFalse(matches("0 9-17 * * 1-5", "2024-01-06T09:00:00Z"));
+    assertTrue(matches("0 0 * 6-8 *", "2024-07-01T00:00:00Z"));
+    assertFalse(matches("0 0 * 6-8 *", "2024-01-01T00:00:00Z"));
+  }
+
+  @Test
+  @DisplayName("steps")
+  void steps() {
+    assertTrue(matches("*/15 * * * *", "2024-01-01T10:45:00Z"));
+    assertFalse(matches("*/15 * * * *", "2024-01-01T10:50:00Z"));
+    assertTrue(matches("0-30/10 * * * *", "2024-01-01T10:30:00Z"));
+    assertFalse(matches("0-30/10 * * * *", "2024-01-01T10:40:00Z"));
+    assertTrue(matches("5/20 * * * *", "2024-01-01T10:45:00Z"));
+    assertFalse(matches("5/20 * * * *", "2024-01-01T10:00:00Z"));
+    assertTrue(matches("0 0 * * 0/6", "2024-01-13T00:00:00Z"));
+  }
+
+  @Test
+  @DisplayName("Sunday is 0 and 7")
+  void sunday() {
+    assertTrue(matches("0 0 * * 7", "2024-01-07T00:00:00Z"));
+    assertTrue(matches("0 0 * * 0", "2024-01-07T00:00:00Z"));
+    assertTrue(matches("0 0 * * 5-7", "2024-01-07T00:00:00Z"));
+    assertFalse(matches("0 0 * * 7", "2024-01-06T00:00:00Z"));
+  }
+}
@@ -0,0 +1,183 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.MongoCollectionReconciler.indexes;
+import static net.pincette.util.Collections.list;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.EncoderContext;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestIndexCodec {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static Index decode(final String listIndexes) {
+    return decode(listIndexes, null);
+  }
+
+  private static Index decode(final String listIndexes, final String locale) {
+    final List<Index> decoded = indexes(list(RawBsonDocument.parse(listIndexes)), locale);
+
+    assertEquals(1, decoded.size());
+
+    return decoded.get(0);
+  }
+
+  private static Index spec(final String json) {
+    try {
+      return MAPPER.readValue(json, Index.class);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Test
+  @DisplayName("clustered index")
+  void clustered() {
+    assertEquals(
+        list(),
+        indexes(
+            list(BsonDocument.parse("{v: 2, key: {_id: 1}, name: '_id_', unique: true}")), null));
+  }
+
+  @Test
+  @DisplayName("collation with only a locale")
+  void collationLocale() {
+    final Collation collation = new Collation();
+    final BsonDocument encoded = new BsonDocument();
+
+    collation.locale = "nl";
+    collation.caseFirst = null;
+    collation.alternate = null;
+    collation.maxVariable = null;
+    new CollationCodec()
+        .encode(new BsonDocumentWriter(encoded), collation, EncoderContext.builder().build());
+
+    assertEquals("nl", encoded.getString("locale").getValue());
+    assertFalse(encoded.containsKey("caseFirst"));
+    assertFalse(encoded.containsKey("alternate"));
+    assertFalse(encoded.containsKey("maxVariable"));
+  }
+
+  @Test
+  @DisplayName("collation")
+  void collation() {
+    final String index =
+        "{v: 2, key: {a: 1}, name: 'a_1', collation: {locale: 'en', caseLevel: false, "
+            + "caseFirst: 'off', strength: %d, numericOrdering: false, alternate: 'non-ignorable', "
+            + "maxVariable: 'punct', normalization: false, backwards: false, version: '57.1'}}";
+
+    assertNull(decode(index.formatted(1), "en").options.collation);
+    assertNotNull(decode(index.formatted(1), "fr").options.collation);
+    assertEquals(
+        spec(
+            "{\"keys\": [{\"field\": \"a\"}], "
+                + "\"options\": {\"collation\": {\"locale\": \"en\", \"strength\": 2}}}"),
+        decode(index.formatted(2), "en"));
+  }
+
+  @Test
+  @DisplayName("index versions")
+  void indexVersions() {
+    final String index =
+        "{v: 2, key: {loc: '2dsphere'}, name: 'loc_2dsphere', '2dsphereIndexVersion': %d}";
+    final Index desired = spec("{\"keys\": [{\"field\": \"loc\", \"type\": \"2dsphere\"}]}");
+
+    assertEquals(desired, decode(index.formatted(3)));
+    assertEquals(desired.hashCode(), decode(index.formatted(3)).hashCode());
+    assertNotEquals(desired, decode(index.formatted(2)));
+  }
+
+  @Test
+  @DisplayName("options")
+  void options() {
+    final Index index =
+        decode(
+            "{v: 2, key: {a: -1, b: 1}, name: 'ab', unique: true, sparse: true, hidden: true, "
+                + "expireAfterSeconds: {$numberLong: '3600'}}");
+
+    assertEquals("ab", index.options.name);
+    assertEquals(
+        spec(
+            "{\"keys\": [{\"field\": \"a\", \"direction\": -1}, {\"field\": \"b\"}], "
+                + "\"options\": {\"unique\": true, \"sparse\": true, \"hidden\": true, "
+                + "\"expireAfterSeconds\": 3600}}"),
+        index);
+  }
+
+  @Test
+  @DisplayName("partial filter")
+  void partialFilter() {
+    final Index index =
+        decode(
+            "{v: 2, key: {a: 1}, name: 'a_1', partialFilterExpression: "
+                + "{$and: [{b: {$gt: {$numberLong: '5'}}}, {c: {$exists: true}}]}}");
+
+    assertEquals(
+        spec(
+            "{\"keys\": [{\"field\": \"a\"}], \"options\": {\"partialFilterExpression\": "
+                + "{\"$and\": [{\"b\": {\"$gt\": 5}}, {\"c\": {\"$exists\": true}}]}}}"),
+        index);
+  }
+
+  @Test
+  @DisplayName("round trip")
+  void roundTrip() {
+    final Index index =
+        spec(
+            "{\"keys\": [{\"field\": \"a\"}, {\"field\": \"t\", \"type\": \"text\"}], "
+                + "\"options\": {\"name\": \"at\", \"weights\": {\"t\": 5}, "
+                + "\"partialFilterExpression\": {\"a\": {\"$gt\": 1.5}}, "
+                + "\"collation\": {\"locale\": \"nl\"}}}");
+    final BsonDocument encoded = new BsonDocument();
+
+    new IndexCodec()
+        .encode(new BsonDocumentWriter(encoded), index, EncoderContext.builder().build());
+
+    assertEquals(index, IndexCodec.decode(encoded));
+    assertEquals("at", IndexCodec.decode(encoded).options.name);
+  }
+
+  @Test
+  @DisplayName("unsupported key types")
+  void unsupportedKeyTypes() {
+    assertEquals(
+        list(decode("{v: 2, key: {a: 1}, name: 'a_1'}")),
+        indexes(
+            list(
+                BsonDocument.parse("{v: 2, key: {a: 'columnstore'}, name: 'a_columnstore'}"),
+                BsonDocument.parse("{v: 2, key: {a: 1}, name: 'a_1'}")),
+            null));
+  }
+
+  @Test
+  @DisplayName("text keys")
+  void textKeys() {
+    final Index index =
+        decode(
+            "{v: 2, key: {a: 1, _fts: 'text', _ftsx: 1}, name: 'text', "
+                + "weights: {title: 10, body: 1}, default_language: 'english', "
+                + "language_override: 'language', textIndexVersion: 3}");
+
+    assertEquals(
+        spec(
+            "{\"keys\": [{\"field\": \"a\"}, {\"field\": \"body\", \"type\": \"text\"}, "
+                + "{\"field\": \"title\", \"type\": \"text\"}], "
+                + "\"options\": {\"weights\": {\"title\": 10}}}"),
+        index);
+    assertEquals(3, index.keys.size());
+    assertEquals(10, index.options.weights.get("title"));
+  }
+}
@@ -0,0 +1,181 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.IndexFixtures.index;
+import static net.pincette.mongo.collections.IndexFixtures.text;
+import static net.pincette.mongo.collections.MongoCollectionReconciler.indexes;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestIndexPlan {
+  private static Index decode(final String listIndexes, final String locale) {
+    return indexes(list(RawBsonDocument.parse(listIndexes)), locale).get(0);
+  }
+
+  @Test
+  @DisplayName("collation defaults")
+  void collationDefaults() {
+    // This is how listIndexes reports a collation, with all fields filled in.
+    final String listed =
+        "{v: 2, key: {a: 1}, name: 'a', collation: {locale: 'fr', caseLevel: false, "
+            + "caseFirst: 'off', strength: %d, numericOrdering: false, "
+            + "alternate: 'non-ignorable', maxVariable: 'punct', normalization: false, "
+            + "backwards: false, version: '57.1'}}";
+    final Index desired = index("a", list(pair("a", 1)));
+
+    desired.options.collation = Collation.defaultCollation("fr");
+
+    final Index found = decode(listed.formatted(1), null);
+
+    assertEquals(new IndexIdentity(desired), new IndexIdentity(found));
+    assertEquals(list(found), new IndexPlan(list(found), list(desired)).keep);
+    assertNotEquals(
+        new IndexIdentity(desired), new IndexIdentity(decode(listed.formatted(2), null)));
+    assertEquals(
+        new IndexIdentity(index("a", list(pair("a", 1)))),
+        new IndexIdentity(decode(listed.formatted(1), "fr")));
+  }
+
+  @Test
+  @DisplayName("deferred builds")
+  void deferredBuilds() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index b = index("b", list(pair("b", 1)));
+    final Index c = index("c", list(pair("c", 1)));
+    final Index newA = index("a", list(pair("a", 1)));
+    final Index newB = index("b", list(pair("b", 1), pair("x", 1)));
+    final Index newC = index("c", list(pair("c", 1)));
+
+    newA.options.sparse = true;
+    newC.options.hidden = true;
+
+    final IndexPlan plan = new IndexPlan(list(a, b, c), list(newA, newB, newC));
+
+    assertEquals(list(pair(a, newA)), plan.rebuild);
+    assertEquals(list(newB), plan.create);
+    assertEquals(list(b), plan.drop);
+    plan.deferBuilds();
+    assertTrue(plan.rebuild.isEmpty());
+    assertTrue(plan.create.isEmpty());
+    assertTrue(plan.drop.isEmpty());
+    assertEquals(list(pair(c, newC)), plan.modify);
+  }
+
+  @Test
+  @DisplayName("duplicates")
+  void duplicates() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index a2 = index("a2", list(pair("a", 1)));
+    final IndexPlan plan = new IndexPlan(list(a, a2), list(index("a", list(pair("a", 1)))));
+
+    assertEquals(list(a), plan.keep);
+    assertEquals(list(a2), plan.drop);
+  }
+
+  @Test
+  @DisplayName("in place")
+  void inPlace() {
+    final Index found = index("a", list(pair("a", 1)));
+    final Index desired = index("a", list(pair("a", 1)));
+
+    desired.options.hidden = true;
+    desired.options.expireAfterSeconds = 60;
+    desired.options.unique = true;
+
+    final IndexPlan plan = new IndexPlan(list(found), list(desired));
+
+    assertEquals(list(pair(found, desired)), plan.modify);
+    assertTrue(plan.rebuild.isEmpty());
+  }
+
+  @Test
+  @DisplayName("key order")
+  void keyOrder() {
+    assertNotEquals(
+        new IndexIdentity(index("ab", list(pair("a", 1), pair("b", 1)))),
+        new IndexIdentity(index("ba", list(pair("b", 1), pair("a", 1)))));
+    assertEquals(new IndexIdentity(text("t", "a", "b")), new IndexIdentity(text("t", "b", "a")));
+    assertEquals(text("t", "a", "b"), text("t", "b", "a"));
+  }
+
+  @Test
+  @DisplayName("numeric types in partial filters")
+  void numericTypes() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index b = index("a", list(pair("a", 1)));
+
+    a.options.partialFilterExpression = map(pair("b", map(pair("$gt", 5))), pair("c", 1.5));
+    b.options.partialFilterExpression = map(pair("c", 1.5F), pair("b", map(pair("$gt", 5L))));
+    assertEquals(new IndexIdentity(a), new IndexIdentity(b));
+    assertEquals(new IndexIdentity(a).hashCode(), new IndexIdentity(b).hashCode());
+    b.options.partialFilterExpression = map(pair("c", 1.5F), pair("b", map(pair("$gt", 5.0))));
+    assertEquals(new IndexIdentity(a), new IndexIdentity(b));
+    b.options.partialFilterExpression = map(pair("c", 1.5F), pair("b", map(pair("$gt", 6L))));
+    assertNotEquals(new IndexIdentity(a), new IndexIdentity(b));
+  }
+
+  @Test
+  @DisplayName("not in place")
+  void notInPlace() {
+    final Index ttl = index("a", list(pair("a", 1)));
+    final Index unique = index("b", list(pair("b", 1)));
+    final Index compound = index("cd", list(pair("c", 1), pair("d", 1)));
+    final Index sparse = index("e", list(pair("e", 1)));
+    final Index noTtl = index("a", list(pair("a", 1)));
+    final Index notUnique = index("b", list(pair("b", 1)));
+    final Index compoundTtl = index("cd", list(pair("c", 1), pair("d", 1)));
+    final Index notSparse = index("e", list(pair("e", 1)));
+
+    ttl.options.expireAfterSeconds = 60;
+    unique.options.unique = true;
+    sparse.options.sparse = true;
+    compoundTtl.options.expireAfterSeconds = 60;
+
+    final IndexPlan plan =
+        new IndexPlan(
+            list(ttl, unique, compound, sparse), list(noTtl, notUnique, compoundTtl, notSparse));
+
+    assertEquals(
+        list(
+            pair(ttl, noTtl),
+            pair(unique, notUnique),
+            pair(compound, compoundTtl),
+            pair(sparse, notSparse)),
+        plan.rebuild);
+    assertTrue(plan.modify.isEmpty());
+  }
+
+  @Test
+  @DisplayName("split")
+  void split() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index b = index("b", list(pair("b", 1)));
+    final Index c = index("c", list(pair("c", 1)));
+    final Index d = index("d", list(pair("d", 1)));
+    final Index e = index("e", list(pair("e", 1)));
+    final Index newA = index(null, list(pair("a", 1)));
+    final Index newC = index("c", list(pair("c", 1)));
+    final Index newD = index("d", list(pair("d", 1)));
+
+    newC.options.hidden = true;
+    newD.options.sparse = true;
+
+    final IndexPlan plan = new IndexPlan(list(a, b, c, d), list(newA, newC, newD, e));
+
+    assertEquals(list(a), plan.keep);
+    assertEquals(list(e), plan.create);
+    assertEquals(list(b), plan.drop);
+    assertEquals(list(pair(c, newC)), plan.modify);
+    assertEquals(list(pair(d, newD)), plan.rebuild);
+    assertTrue(new IndexPlan(list(a), list(newA)).isEmpty());
+  }
+}
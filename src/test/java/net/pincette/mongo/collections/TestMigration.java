@@ -0,0 +1,37 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.Migration.clusterTime;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestMigration {
+  private static BsonDocument token(final String data) {
+    return new BsonDocument("_data", new BsonString(data));
+  }
+
+  @Test
+  @DisplayName("cluster time of a resume token")
+  void clusterTimeOfToken() {
+    assertEquals(
+        new BsonTimestamp(0x635019A0, 1),
+        clusterTime(
+            token(
+                "82635019A0000000012B022C0100296E5A1004AB1154ACACD849A48C61756D70D3B21F463C6F706572"
+                    + "6174696F6E54797065003C696E736572740046646F63756D656E744B65790046645F6964006463"
+                    + "5019A078BE67426D7CF4D2000004")));
+    assertEquals(new BsonTimestamp(0x635019A5, 3), clusterTime(token("82635019A500000003")));
+  }
+
+  @Test
+  @DisplayName("unsupported resume token")
+  void unsupportedToken() {
+    assertThrows(IllegalStateException.class, () -> clusterTime(token("")));
+    assertThrows(IllegalStateException.class, () -> clusterTime(new BsonDocument()));
+  }
+}
@@ -3,6 +3,7 @@ package net.pincette.mongo.collections;
 import static com.mongodb.client.model.Filters.eq;
 import static io.fabric8.kubernetes.client.Config.autoConfigure;
 import static java.time.Duration.ofSeconds;
+import static java.util.Optional.ofNullable;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static net.pincette.jes.util.Configuration.loadDefault;
 import static net.pincette.mongo.collections.MongoCollectionReconciler.exists;
@@ -16,6 +17,7 @@ import static net.pincette.util.Collections.concat;
 import static net.pincette.util.Collections.list;
 import static net.pincette.util.Pair.pair;
 import static net.pincette.util.StreamUtil.stream;
+import static net.pincette.util.Util.tryToDoSilent;
 import static net.pincette.util.Util.waitFor;
 import static net.pincette.util.Util.waitForCondition;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -33,6 +35,9 @@ import java.time.Duration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
 import net.pincette.mongo.collections.MongoCollectionSpec.Index;
 import net.pincette.mongo.collections.MongoCollectionSpec.Index.Key;
@@ -142,6 +147,13 @@ class TestMongoCollections {
         .join();
   }
 
+  private static void insertData(final int count) {
+    DATABASE
+        .getCollection(COLLECTION)
+        .insertMany(
+            IntStream.range(0, count).mapToObj(i -> new Document("test", "d" + i)).toList());
+  }
+
   private static void insertData() {
     DATABASE
         .getCollection(COLLECTION)
@@ -183,6 +195,26 @@ class TestMongoCollections {
     operator.start();
   }
 
+  private static boolean waitForMigration() {
+    return waitFor(
+            waitForCondition(
+                () ->
+                    completedFuture(
+                        ofNullable(
+                                CLIENT
+                                    .resources(MongoCollection.class)
+                                    .inNamespace(NAMESPACE)
+                                    .withName(COLLECTION)
+                                    .get()
+                                    .getStatus())
+                            .map(s -> s.migration)
+                            .filter(m -> !m.running && m.phase != null)
+                            .isPresent())),
+            INTERVAL)
+        .toCompletableFuture()
+        .join();
+  }
+
   private static boolean waitForCollection(final MongoCollectionSpec spec) {
     final String locale = locale(spec);
     final Set<Index> indexes = new HashSet<>(removeDefaultCollation(spec.indexes, locale));
@@ -256,6 +288,56 @@ class TestMongoCollections {
     create(null);
   }
 
+  @Test
+  @DisplayName("migrate while writing")
+  void migrateWhileWriting() throws InterruptedException {
+    final MongoCollectionSpec spec = createCollectionSpec(createCollation(1));
+
+    createCollection(createCollection(spec));
+    assertTrue(waitForCollection(spec));
+    insertData(10000);
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicInteger written = new AtomicInteger();
+    final Thread writer =
+        new Thread(
+            () -> {
+              for (int i = 0; !stop.get(); ++i) {
+                final int n = i;
+
+                // Writes are refused for a moment during the cutover.
+                tryToDoSilent(
+                    () -> {
+                      DATABASE.getCollection(COLLECTION).insertOne(new Document("test", "w" + n));
+                      written.incrementAndGet();
+                    });
+              }
+            });
+
+    spec.collation = createCollation(2);
+    spec.indexes.get(0).options.collation = spec.collation;
+    spec.migration = new MongoCollectionSpec.Migration();
+    spec.migration.maxDocumentsPerSecond = 2000;
+    writer.start();
+    createCollection(createCollection(spec));
+    assertTrue(waitForMigration());
+    stop.set(true);
+    writer.join();
+
+    final MongoCollectionStatus.Migration migration =
+        CLIENT
+            .resources(MongoCollection.class)
+            .inNamespace(NAMESPACE)
+            .withName(COLLECTION)
+            .get()
+            .getStatus()
+            .migration;
+
+    assertEquals("done", migration.phase, migration.message);
+    assertTrue(written.get() > 0);
+    assertEquals(10000L + written.get(), DATABASE.getCollection(COLLECTION).countDocuments());
+  }
+
   @Test
   @DisplayName("illegal update")
   void illegalUpdate() {
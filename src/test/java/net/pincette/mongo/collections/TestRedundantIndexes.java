@@ -0,0 +1,124 @@
+package net.pincette.mongo.collections;
+
+import static net.pincette.mongo.collections.IndexFixtures.index;
+import static net.pincette.mongo.collections.RedundantIndexes.covers;
+import static net.pincette.mongo.collections.RedundantIndexes.find;
+import static net.pincette.mongo.collections.RedundantIndexes.strictlyCovers;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.pincette.mongo.collections.MongoCollectionSpec.Collation;
+import net.pincette.mongo.collections.MongoCollectionSpec.Index;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TestRedundantIndexes {
+  @Test
+  @DisplayName("collation")
+  void collation() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+
+    ab.options.collation = new Collation();
+    ab.options.collation.locale = "en";
+
+    assertFalse(covers(ab, a));
+  }
+
+  @Test
+  @DisplayName("directions")
+  void directions() {
+    final Index a = index("a", list(pair("a", 1), pair("b", -1)));
+
+    assertTrue(covers(index("b", list(pair("a", -1), pair("b", 1), pair("c", 1))), a));
+    assertFalse(covers(index("c", list(pair("a", 1), pair("b", 1), pair("c", 1))), a));
+  }
+
+  @Test
+  @DisplayName("found indexes")
+  void foundIndexes() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+    final Index abc = index("abc", list(pair("a", 1), pair("b", 1), pair("c", 1)));
+    final Index foundA = index("a_1", list(pair("a", 1)));
+
+    assertEquals(list(pair(a, abc)), find(list(a), list(foundA, abc)));
+    assertEquals(list(pair(a, ab), pair(ab, abc)), find(list(a, ab), list(abc)));
+    assertEquals(list(), find(list(a), list(foundA)));
+  }
+
+  @Test
+  @DisplayName("key types")
+  void keyTypes() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+    final Index at = index("at", list(pair("a", 1), pair("t", 1)));
+
+    ab.keys.get(1).type = KeyType.hashed;
+    at.keys.get(1).type = KeyType.text;
+    assertTrue(covers(ab, a));
+    assertFalse(covers(at, a));
+    ab.keys.get(0).type = KeyType.hashed;
+    assertFalse(covers(ab, a));
+  }
+
+  @Test
+  @DisplayName("mutual")
+  void mutual() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index b = index("b", list(pair("a", -1)));
+
+    assertTrue(covers(a, b));
+    assertFalse(strictlyCovers(a, b));
+    assertEquals(list(pair(b, a)), find(list(a, b)));
+  }
+
+  @Test
+  @DisplayName("partial filter")
+  void partialFilter() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+
+    ab.options.partialFilterExpression = map(pair("b", map(pair("$gt", 5))));
+    assertFalse(covers(ab, a));
+    a.options.partialFilterExpression = map(pair("b", map(pair("$gt", 5L))));
+    assertTrue(covers(ab, a));
+  }
+
+  @Test
+  @DisplayName("prefix")
+  void prefix() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+    final Index b = index("b", list(pair("b", 1)));
+
+    assertTrue(strictlyCovers(ab, a));
+    assertFalse(covers(a, ab));
+    assertFalse(covers(ab, b));
+    assertEquals(list(pair(a, ab)), find(list(a, ab, b)));
+  }
+
+  @Test
+  @DisplayName("sparse, unique, TTL and hidden")
+  void semantics() {
+    final Index a = index("a", list(pair("a", 1)));
+    final Index ab = index("ab", list(pair("a", 1), pair("b", 1)));
+
+    ab.options.sparse = true;
+    assertFalse(covers(ab, a));
+    a.options.sparse = true;
+    assertTrue(covers(ab, a));
+    ab.options.hidden = true;
+    assertFalse(covers(ab, a));
+    ab.options.hidden = false;
+    a.options.unique = true;
+    assertFalse(covers(ab, a));
+    a.options.unique = false;
+    a.options.expireAfterSeconds = 3600;
+    assertFalse(covers(ab, a));
+  }
+}